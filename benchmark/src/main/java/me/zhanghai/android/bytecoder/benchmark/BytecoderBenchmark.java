@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.benchmark;
+
+import org.gradle.testkit.runner.GradleRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Benchmarks {@code BytecoderTransform} in generated projects with Gradle TestKit, so that the
+ * overheads of Gradle are included.
+ * <p>
+ * Each iteration measures the time for running the transform in a clean build (without its
+ * previous outputs), after changing a single class, and in a no-op build. The compilation before
+ * the transform is not measured.
+ * <p>
+ * Arguments are in the form of {@code key=value}:
+ * <ul>
+ * <li>{@code classes}: the total number of classes, defaults to {@code 1000}</li>
+ * <li>{@code modules}: the number of modules, defaults to {@code 1}</li>
+ * <li>{@code stubInterval}: one in how many classes declares a stub, defaults to {@code 10}</li>
+ * <li>{@code iterations}: the number of iterations, defaults to {@code 3}</li>
+ * <li>{@code directory}: the directory for the generated project, defaults to
+ * {@code build/benchmark/project}</li>
+ * <li>{@code results}: the CSV file to append the results to, defaults to
+ * {@code build/benchmark/results.csv}</li>
+ * <li>{@code cleanBudget}, {@code incrementalBudget} and {@code noOpBudget}: the time budgets in
+ * milliseconds for the median time of each scenario, which fail the benchmark when exceeded</li>
+ * </ul>
+ */
+public class BytecoderBenchmark {
+
+    private static final String SCENARIO_CLEAN = "clean";
+    private static final String SCENARIO_INCREMENTAL = "incremental";
+    private static final String SCENARIO_NO_OP = "noOp";
+
+    private BytecoderBenchmark() {}
+
+    public static void main(String[] args) throws IOException {
+
+        Map<String, String> arguments = new HashMap<>();
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index == -1) {
+                throw new IllegalArgumentException("Argument must be in the form of key=value: "
+                        + arg);
+            }
+            arguments.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+        int classCount = Integer.parseInt(arguments.getOrDefault("classes", "1000"));
+        int moduleCount = Integer.parseInt(arguments.getOrDefault("modules", "1"));
+        int stubInterval = Integer.parseInt(arguments.getOrDefault("stubInterval", "10"));
+        int iterations = Integer.parseInt(arguments.getOrDefault("iterations", "3"));
+        Path directory = Paths.get(arguments.getOrDefault("directory",
+                "build/benchmark/project")).toAbsolutePath();
+        Path resultsFile = Paths.get(arguments.getOrDefault("results",
+                "build/benchmark/results.csv")).toAbsolutePath();
+        Map<String, Long> budgets = new HashMap<>();
+        putBudget(budgets, SCENARIO_CLEAN, arguments.get("cleanBudget"));
+        putBudget(budgets, SCENARIO_INCREMENTAL, arguments.get("incrementalBudget"));
+        putBudget(budgets, SCENARIO_NO_OP, arguments.get("noOpBudget"));
+
+        Properties properties = new Properties();
+        try (InputStream inputStream = BytecoderBenchmark.class.getResourceAsStream(
+                "/benchmark.properties")) {
+            properties.load(inputStream);
+        }
+        List<File> pluginClasspath = new ArrayList<>();
+        for (String path : properties.getProperty("pluginClasspath").split(File.pathSeparator)) {
+            pluginClasspath.add(new File(path));
+        }
+
+        SyntheticProject project = new SyntheticProject(directory, moduleCount, classCount,
+                stubInterval, properties.getProperty("libraryJar"),
+                properties.getProperty("sdkDirectory"));
+        project.generate();
+        GradleRunner runner = GradleRunner.create()
+                .withProjectDir(directory.toFile())
+                .withPluginClasspath(pluginClasspath);
+
+        Map<String, List<Long>> results = new LinkedHashMap<>();
+        results.put(SCENARIO_CLEAN, new ArrayList<>());
+        results.put(SCENARIO_INCREMENTAL, new ArrayList<>());
+        results.put(SCENARIO_NO_OP, new ArrayList<>());
+        runTask(runner, project.getCompileTaskName());
+        for (int iteration = 0; iteration < iterations; ++iteration) {
+
+            for (Path outputDirectory : project.getTransformOutputDirectories()) {
+                SyntheticProject.deleteRecursivelyIfExists(outputDirectory);
+            }
+            results.get(SCENARIO_CLEAN).add(runTask(runner, project.getTransformTaskName()));
+
+            project.changeClass(iteration + 1);
+            runTask(runner, project.getCompileTaskName());
+            results.get(SCENARIO_INCREMENTAL).add(runTask(runner,
+                    project.getTransformTaskName()));
+
+            results.get(SCENARIO_NO_OP).add(runTask(runner, project.getTransformTaskName()));
+        }
+
+        writeResults(resultsFile, moduleCount, classCount, results);
+
+        List<String> failures = new ArrayList<>();
+        for (Map.Entry<String, List<Long>> entry : results.entrySet()) {
+            String scenario = entry.getKey();
+            long median = getMedian(entry.getValue());
+            System.out.println(scenario + ": " + median + " ms (median of " + entry.getValue()
+                    + ")");
+            Long budget = budgets.get(scenario);
+            if (budget != null && median > budget) {
+                failures.add(scenario + " took " + median + " ms, exceeding the budget of "
+                        + budget + " ms");
+            }
+        }
+        if (!failures.isEmpty()) {
+            for (String failure : failures) {
+                System.err.println(failure);
+            }
+            System.exit(1);
+        }
+    }
+
+    private static void putBudget(Map<String, Long> budgets, String scenario, String budget) {
+        if (budget != null) {
+            budgets.put(scenario, Long.parseLong(budget));
+        }
+    }
+
+    private static long runTask(GradleRunner runner, String taskName) {
+        long startTime = System.nanoTime();
+        runner.withArguments(taskName, "--no-build-cache", "--stacktrace").build();
+        return (System.nanoTime() - startTime) / 1_000_000;
+    }
+
+    private static long getMedian(List<Long> times) {
+        List<Long> sortedTimes = new ArrayList<>(times);
+        Collections.sort(sortedTimes);
+        return sortedTimes.get(sortedTimes.size() / 2);
+    }
+
+    private static void writeResults(Path resultsFile, int moduleCount, int classCount,
+                                     Map<String, List<Long>> results) throws IOException {
+        Files.createDirectories(resultsFile.getParent());
+        boolean writeHeader = !Files.exists(resultsFile);
+        long timestamp = System.currentTimeMillis();
+        try (Writer writer = Files.newBufferedWriter(resultsFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (writeHeader) {
+                writer.write(String.join(",", Arrays.asList("timestamp", "scenario", "modules",
+                        "classes", "iteration", "millis")) + "\n");
+            }
+            for (Map.Entry<String, List<Long>> entry : results.entrySet()) {
+                List<Long> times = entry.getValue();
+                for (int i = 0; i < times.size(); ++i) {
+                    writer.write(timestamp + "," + entry.getKey() + "," + moduleCount + ","
+                            + classCount + "," + i + "," + times.get(i) + "\n");
+                }
+            }
+        }
+    }
+}
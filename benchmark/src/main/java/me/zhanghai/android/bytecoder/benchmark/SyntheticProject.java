@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A generated multi-module project with Android library modules that apply the plugin.
+ */
+class SyntheticProject {
+
+    private static final String PACKAGE_NAME_PREFIX = "me.zhanghai.android.bytecoder.benchmark.";
+
+    private final Path directory;
+    private final int moduleCount;
+    private final int classCount;
+    private final int stubInterval;
+    private final String libraryJar;
+    private final String sdkDirectory;
+
+    public SyntheticProject(Path directory, int moduleCount, int classCount,
+                            int stubInterval, String libraryJar, String sdkDirectory) {
+        this.directory = directory;
+        this.moduleCount = moduleCount;
+        this.classCount = classCount;
+        this.stubInterval = stubInterval;
+        this.libraryJar = libraryJar;
+        this.sdkDirectory = sdkDirectory;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public String getCompileTaskName() {
+        return "compileDebugJavaWithJavac";
+    }
+
+    public String getTransformTaskName() {
+        return "transformClassesWithBytecoderForDebug";
+    }
+
+    public void generate() throws IOException {
+        deleteRecursivelyIfExists(directory);
+        Files.createDirectories(directory);
+
+        StringBuilder settings = new StringBuilder();
+        for (int i = 0; i < moduleCount; ++i) {
+            settings.append("include ':").append(getModuleName(i)).append("'\n");
+        }
+        write(directory.resolve("settings.gradle"), settings.toString());
+        write(directory.resolve("build.gradle"), ""
+                + "allprojects {\n"
+                + "    repositories {\n"
+                + "        google()\n"
+                + "        jcenter()\n"
+                + "    }\n"
+                + "}\n");
+        if (sdkDirectory != null) {
+            write(directory.resolve("local.properties"), "sdk.dir="
+                    + sdkDirectory.replace("\\", "\\\\") + "\n");
+        }
+
+        for (int i = 0; i < moduleCount; ++i) {
+            generateModule(i);
+        }
+    }
+
+    private void generateModule(int moduleIndex) throws IOException {
+        Path moduleDirectory = directory.resolve(getModuleName(moduleIndex));
+        String packageName = getPackageName(moduleIndex);
+        write(moduleDirectory.resolve("build.gradle"), ""
+                + "plugins {\n"
+                + "    id 'com.android.library'\n"
+                + "    id 'me.zhanghai.android.bytecoder'\n"
+                + "}\n"
+                + "\n"
+                + "android {\n"
+                + "    compileSdkVersion 28\n"
+                + "}\n"
+                + "\n"
+                + "dependencies {\n"
+                + "    compileOnly files('" + libraryJar.replace("\\", "\\\\") + "')\n"
+                + "}\n");
+        write(moduleDirectory.resolve("src/main/AndroidManifest.xml"),
+                "<manifest package=\"" + packageName + "\" />\n");
+        for (int classIndex = moduleIndex; classIndex < classCount; classIndex += moduleCount) {
+            write(getClassFile(moduleIndex, classIndex), generateClass(moduleIndex, classIndex,
+                    0));
+        }
+    }
+
+    /**
+     * Change a single class in the first module.
+     */
+    public void changeClass(int revision) throws IOException {
+        write(getClassFile(0, 0), generateClass(0, 0, revision));
+    }
+
+    public List<Path> getTransformOutputDirectories() {
+        List<Path> directories = new ArrayList<>();
+        for (int i = 0; i < moduleCount; ++i) {
+            directories.add(directory.resolve(getModuleName(i)).resolve(
+                    "build/intermediates/transforms/Bytecoder"));
+        }
+        return directories;
+    }
+
+    private String generateClass(int moduleIndex, int classIndex, int revision) {
+        StringBuilder builder = new StringBuilder()
+                .append("package ").append(getPackageName(moduleIndex)).append(";\n")
+                .append("\n")
+                .append("public class C").append(classIndex).append(" {\n")
+                .append("\n")
+                .append("    public static int getValue() {\n")
+                .append("        return ").append(classIndex + revision).append(";\n")
+                .append("    }\n");
+        if (classIndex % stubInterval == 0) {
+            builder
+                    .append("\n")
+                    .append("    @me.zhanghai.android.bytecoder.library.InvokeStatic(")
+                    .append("classConstant = Integer.class, methodName = \"parseInt\")\n")
+                    .append("    public static int parseInt(String s) throws LinkageError {\n")
+                    .append("        return 0;\n")
+                    .append("    }\n");
+        }
+        return builder
+                .append("}\n")
+                .toString();
+    }
+
+    private Path getClassFile(int moduleIndex, int classIndex) {
+        return directory.resolve(getModuleName(moduleIndex)).resolve("src/main/java").resolve(
+                getPackageName(moduleIndex).replace('.', '/')).resolve("C" + classIndex + ".java");
+    }
+
+    private static String getModuleName(int moduleIndex) {
+        return "module" + moduleIndex;
+    }
+
+    private static String getPackageName(int moduleIndex) {
+        return PACKAGE_NAME_PREFIX + getModuleName(moduleIndex);
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void deleteRecursivelyIfExists(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                    throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException exception)
+                    throws IOException {
+                if (exception != null) {
+                    throw exception;
+                }
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
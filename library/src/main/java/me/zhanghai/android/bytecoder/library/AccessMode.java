@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.library;
+
+/**
+ * The memory ordering of accessing a field, as in {@code java.lang.invoke.VarHandle}.
+ * <p>
+ * Modes other than {@link #PLAIN} are implemented with a {@code VarHandle} held in a
+ * {@code static final} field of a generated holder class, or with {@code sun.misc.Unsafe} and the
+ * offset of the field if the class file version is older than Java 9.
+ * <p>
+ * Without {@code VarHandle}, which is the case on Android, these modes are only supported for
+ * instance fields of type {@code int}, {@code long} or a reference, because
+ * {@code sun.misc.Unsafe} on Android cannot access static fields, or other primitive fields
+ * atomically. Other fields fail the transform.
+ */
+public enum AccessMode {
+
+    /**
+     * Access the field with a plain {@code getfield} or {@code putfield} instruction.
+     */
+    PLAIN,
+
+    /**
+     * Access the field atomically, in program order with other opaque accesses to the same field.
+     */
+    OPAQUE,
+
+    /**
+     * Get the field with acquire semantics, or set the field with release semantics.
+     */
+    ACQUIRE_RELEASE,
+
+    /**
+     * Access the field as if it were declared {@code volatile}.
+     */
+    VOLATILE
+}
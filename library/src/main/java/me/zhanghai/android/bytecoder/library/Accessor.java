@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.library;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Generate a final implementation of an interface or abstract class, which holds an instance of
+ * the target class and accesses its members directly.
+ * <p>
+ * Every abstract method must have one of the other annotations, whose {@code classConstant} and
+ * {@code className} can be omitted to default to the target class. For accessing an instance
+ * method or field, the method must not take the instance of the target class as a parameter,
+ * because the held instance is used instead.
+ * <p>
+ * An instance of the implementation can be created with a method with {@link NewAccessor}. An
+ * abstract class must have a no-argument constructor accessible in its package.
+ */
+@Target({ ElementType.TYPE })
+public @interface Accessor {
+
+    /**
+     * The class constant (e.g. {@code Object.class}) of the target class.
+     * <p>
+     * Either this or {@link #className()} must be specified.
+     */
+    Class<?> classConstant() default void.class;
+
+    /**
+     * The class name (e.g. {@code "java.lang.Object"}) of the target class.
+     * <p>
+     * Either this or {@link #classConstant()} must be specified.
+     */
+    String className() default "";
+}
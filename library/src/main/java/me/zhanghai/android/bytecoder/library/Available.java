@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.library;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Transform a method to return whether a class, or the target of another method, is available at
+ * runtime.
+ * <p>
+ * The method must take no parameter and return a {@code boolean}. The result is computed only once
+ * and cached in a static final field, so checking it again costs nothing, unlike calling the
+ * target and catching {@link LinkageError}.
+ */
+@Target({ ElementType.METHOD })
+public @interface Available {
+
+    /**
+     * The class name (e.g. {@code "android.app.ActivityThread"}) of the class.
+     * <p>
+     * Either this or {@link #methodName()} must be specified.
+     */
+    String className() default "";
+
+    /**
+     * The name of the other method in the same class, whose target field, method or constructor
+     * is checked. It must not be overloaded.
+     * <p>
+     * Either this or {@link #className()} must be specified.
+     */
+    String methodName() default "";
+}
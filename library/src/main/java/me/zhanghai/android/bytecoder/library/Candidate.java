@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.library;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Target;
+
+/**
+ * Specify an alternative target for a method transformed by another annotation, e.g. when the
+ * hidden API changed its owner or signature across platform versions.
+ * <p>
+ * The target of the other annotation and all the candidates are probed once when the method is
+ * first called, and the method always dispatches to the first available one in declaration order
+ * afterwards. If none of them is available, the method throws a {@link LinkageError}, and
+ * {@link SelectedCandidate} can be used to check for this beforehand.
+ * <p>
+ * Any element that is not specified is the same as in the other annotation.
+ */
+@Repeatable(Candidates.class)
+@Target({ ElementType.METHOD })
+public @interface Candidate {
+
+    /**
+     * The class constant (e.g. {@code Object.class}) of the owner of the method or field.
+     * <p>
+     * At most one of this and {@link #className()} can be specified.
+     */
+    Class<?> classConstant() default void.class;
+
+    /**
+     * The class name (e.g. {@code "java.lang.Object"}) of the owner of the method or field.
+     * <p>
+     * At most one of this and {@link #classConstant()} can be specified.
+     */
+    String className() default "";
+
+    /**
+     * The name of the method.
+     */
+    String methodName() default "";
+
+    /**
+     * The name of the field.
+     */
+    String fieldName() default "";
+
+    /**
+     * The actual type names (e.g. {@code "java.lang.Object"}) for all the parameters of the method.
+     * <p>
+     * Each of them must either be the same as the declared type of the parameter, or a reference
+     * type when the parameter is declared as a reference type.
+     */
+    String[] parameterTypeNames() default {};
+
+    /**
+     * The actual type name (e.g. {@code "java.lang.Object"}) for the return value of the method.
+     */
+    String returnTypeName() default "";
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.library;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * The container for repeated {@link Candidate} annotations.
+ */
+@Target({ ElementType.METHOD })
+public @interface Candidates {
+
+    /**
+     * The candidates, in the order of preference.
+     */
+    Candidate[] value();
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.library;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Transform a method to atomically set the value of a field if its current value is the expected
+ * value, with the memory semantics of {@link AccessMode#VOLATILE}.
+ * <p>
+ * The method must take three parameters. The first parameter must be an instance of the owner of
+ * the field, and the second and the third parameters must be the expected value and the new value
+ * of the same type as the field. The method must return a boolean for whether the value was set.
+ * <p>
+ * Without {@code VarHandle}, the field must be an {@code int}, a {@code long} or a reference.
+ */
+@Target({ ElementType.METHOD })
+public @interface CompareAndSetField {
+
+    /**
+     * The class constant (e.g. {@code Object.class}) of the owner of the field.
+     * <p>
+     * Either this or {@link #className()} must be specified.
+     */
+    Class<?> classConstant() default void.class;
+
+    /**
+     * The class name (e.g. {@code "java.lang.Object"}) of the owner of the field.
+     * <p>
+     * Either this or {@link #classConstant()} must be specified.
+     */
+    String className() default "";
+
+    /**
+     * The name of the field.
+     */
+    String fieldName();
+}
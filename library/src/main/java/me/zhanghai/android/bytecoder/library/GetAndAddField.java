@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.library;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Transform a method to atomically add to the value of a field, with the memory semantics of
+ * {@link AccessMode#VOLATILE}.
+ * <p>
+ * The method must take two parameters. The first parameter must be an instance of the owner of the
+ * field, and the second parameter must be the value to add, of the same type as the field which
+ * must be an {@code int} or a {@code long}. The method must return the previous value of the
+ * field.
+ * <p>
+ * Without {@code VarHandle}, which is the case on Android, this is implemented with the
+ * {@code getAndAdd} methods of {@code sun.misc.Unsafe}, which are only available on Android 7.0
+ * (API level 24) and later.
+ */
+@Target({ ElementType.METHOD })
+public @interface GetAndAddField {
+
+    /**
+     * The class constant (e.g. {@code Object.class}) of the owner of the field.
+     * <p>
+     * Either this or {@link #className()} must be specified.
+     */
+    Class<?> classConstant() default void.class;
+
+    /**
+     * The class name (e.g. {@code "java.lang.Object"}) of the owner of the field.
+     * <p>
+     * Either this or {@link #classConstant()} must be specified.
+     */
+    String className() default "";
+
+    /**
+     * The name of the field.
+     */
+    String fieldName();
+}
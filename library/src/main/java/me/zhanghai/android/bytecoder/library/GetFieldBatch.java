@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.library;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Transform a method to get the value of a field from a number of instances of its owner in a
+ * single loop, without the overhead of a method call for each instance.
+ * <p>
+ * The method must take two parameters and return {@code void}. The first parameter must be an
+ * array of the owner of the field, or a {@link java.util.List} of its instances, and the second
+ * parameter must be an array of the type of the field, which is at least as long. The value of the
+ * field in each instance is stored into the second parameter at the same index.
+ */
+@Target({ ElementType.METHOD })
+public @interface GetFieldBatch {
+
+    /**
+     * The class constant (e.g. {@code Object.class}) of the owner of the field.
+     * <p>
+     * Either this or {@link #className()} must be specified.
+     */
+    Class<?> classConstant() default void.class;
+
+    /**
+     * The class name (e.g. {@code "java.lang.Object"}) of the owner of the field.
+     * <p>
+     * Either this or {@link #classConstant()} must be specified.
+     */
+    String className() default "";
+
+    /**
+     * The name of the field.
+     */
+    String fieldName();
+}
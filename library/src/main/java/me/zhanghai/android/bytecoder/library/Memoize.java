@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.library;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Compute the result of a method transformed by {@link GetStatic} or {@link InvokeStatic} only
+ * once, and return the same result afterwards.
+ * <p>
+ * The method must take no parameter and must not return void. The result is stored in a
+ * {@code static final} field of a generated holder class, so it is computed lazily and safely
+ * without locks. If computing the result failed, the method will always throw a
+ * {@link LinkageError}.
+ */
+@Target({ ElementType.METHOD })
+public @interface Memoize {}
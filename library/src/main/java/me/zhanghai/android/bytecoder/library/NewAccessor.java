@@ -0,0 +1,20 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.library;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Transform a static method declared in a type with {@link Accessor} to create an instance of the
+ * generated implementation.
+ * <p>
+ * The method must take an instance of the target class as its only parameter, which can be
+ * declared as {@code Object}, and it must return the type with {@link Accessor}. A
+ * {@link ClassCastException} is thrown if the instance is not of the target class.
+ */
+@Target({ ElementType.METHOD })
+public @interface NewAccessor {}
@@ -32,7 +32,28 @@ public @interface PutField {
     String className() default "";
 
     /**
-     * The name of the field.
+     * The name of the field, or a path of fields separated by dots (e.g. {@code "mH.mCallback"})
+     * to access the last field through the previous ones with the plain access mode.
      */
     String fieldName();
+
+    /**
+     * The type names (e.g. {@code "android.os.Handler"}) of all the fields but the last in
+     * {@link #fieldName()}, when it is a path.
+     */
+    String[] fieldTypeNames() default {};
+
+    /**
+     * Whether to do nothing instead of throwing a {@link NullPointerException} when any field but
+     * the last in {@link #fieldName()} is {@code null}.
+     */
+    boolean nullSafe() default false;
+
+    /**
+     * The memory ordering of accessing the field.
+     * <p>
+     * Without {@code VarHandle}, modes other than {@link AccessMode#PLAIN} require the field to be
+     * an {@code int}, a {@code long} or a reference.
+     */
+    AccessMode mode() default AccessMode.PLAIN;
 }
@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.library;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Transform a method to return the candidate selected for another method with {@link Candidate}.
+ * <p>
+ * The method must take no parameter, and it must either return an {@code int}, which is the index
+ * of the selected candidate with the target of the other annotation being {@code 0}, or
+ * {@code -1} if none is available; or return a {@code boolean}, which is whether any candidate is
+ * available. The result is computed only once.
+ */
+@Target({ ElementType.METHOD })
+public @interface SelectedCandidate {
+
+    /**
+     * The name of the other method in the same class. It must not be overloaded.
+     */
+    String methodName();
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.library;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Mark a method transformed by one of the other annotations as used during startup, so that the
+ * method, its declaring class and the classes generated for it are included in the baseline
+ * profile generated by the plugin, and can be compiled ahead of time by ART at install time.
+ * <p>
+ * The baseline profile is only generated when {@code baselineProfile} is enabled in the
+ * {@code bytecoder} extension, which can also list the methods used during startup in
+ * {@code startupStubs} instead.
+ */
+@Target({ ElementType.METHOD })
+public @interface Startup {}
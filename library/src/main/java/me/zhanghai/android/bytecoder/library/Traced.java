@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.library;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Trace a method transformed by one of the other annotations, so that the time spent in its target
+ * shows up as a section in system traces on Android, or as an event in Java Flight Recorder on the
+ * JVM.
+ * <p>
+ * Methods are only traced when {@code traceStubs} is enabled in the {@code bytecoder} extension,
+ * and tracing on Android requires API level 18.
+ */
+@Target({ ElementType.METHOD })
+public @interface Traced {
+
+    /**
+     * The name of the section, or of the method in the event, which is the simple name of the
+     * declaring class and the name of the method (e.g. {@code "Foo.bar"}) by default.
+     * <p>
+     * Section names longer than 127 characters are truncated.
+     */
+    String sectionName() default "";
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.gradle.api.artifacts.transform.ArtifactTransform;
+
+import javax.inject.Inject;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Transforms the class jars of dependencies.
+ * <p>
+ * Gradle caches the result for each jar by its content and the parameters in its transform cache,
+ * so that a dependency is transformed only once on a machine and the result is reused by all the
+ * projects and variants.
+ */
+public class BytecoderArtifactTransform extends ArtifactTransform {
+
+    private static final String CLASS_FILE_EXTENSION = ".class";
+
+    private final boolean isolateStubs;
+    private final boolean verify;
+    private final String tracer;
+    private final List<String> classVisitorFactoryClassNames;
+
+    /**
+     * Create the transform with the options of {@link BytecoderExtension}.
+     * <p>
+     * The class visitor factories are loaded by the class loader of the plugin, and the hash of
+     * their classpath is only a parameter so that it becomes part of the cache key.
+     *
+     * @param classVisitorFactoryClasspathHash the hash of the classpath of the class visitor
+     *                                         factories
+     */
+    @Inject
+    public BytecoderArtifactTransform(boolean isolateStubs, boolean verify, boolean traceStubs,
+                                      List<String> classVisitorFactoryClassNames,
+                                      String classVisitorFactoryClasspathHash) {
+        this.isolateStubs = isolateStubs;
+        this.verify = verify;
+        tracer = traceStubs ? BytecoderTracing.TRACER_ANDROID : null;
+        this.classVisitorFactoryClassNames = classVisitorFactoryClassNames;
+    }
+
+    @Override
+    public List<File> transform(File input) {
+        // Only dependencies from repositories have the attribute for this transform, whose classes
+        // are always in jars.
+        if (!input.isFile()) {
+            return Collections.singletonList(input);
+        }
+        try {
+            TreeMap<String, byte[]> entries = new TreeMap<>();
+            // The class visitors of the factories see every class, so classes are always
+            // rewritten when there are any.
+            boolean hasClassVisitorFactories = !classVisitorFactoryClassNames.isEmpty();
+            boolean transformed = false;
+            try (ZipInputStream inputStream = new ZipInputStream(new BufferedInputStream(
+                    Files.newInputStream(input.toPath())))) {
+                ZipEntry entry;
+                while ((entry = inputStream.getNextEntry()) != null) {
+                    String name = entry.getName();
+                    byte[] bytes = BytecoderJars.readAllBytes(inputStream);
+                    if (!name.endsWith(CLASS_FILE_EXTENSION) || (!hasClassVisitorFactories
+                            && !BytecoderClassTranformer.mayTransform(bytes))) {
+                        entries.put(name, bytes);
+                        continue;
+                    }
+                    Map<String, byte[]> generatedClasses = new LinkedHashMap<>();
+                    entries.put(name, BytecoderClassTranformer.transform(bytes, isolateStubs,
+                            classVisitorFactoryClassNames, verify, tracer, generatedClasses));
+                    for (Map.Entry<String, byte[]> generatedClass : generatedClasses.entrySet()) {
+                        entries.put(generatedClass.getKey() + CLASS_FILE_EXTENSION,
+                                generatedClass.getValue());
+                    }
+                    transformed = true;
+                }
+            }
+            // Most dependencies do not use Bytecoder, and can be used as is.
+            if (!transformed) {
+                return Collections.singletonList(input);
+            }
+            File output = new File(getOutputDirectory(), input.getName());
+            BytecoderJars.write(output.toPath(), entries);
+            return Collections.singletonList(output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.workers.IsolationMode;
+import org.gradle.workers.WorkerExecutor;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Checks the stubs in the classes of a variant or source set in parallel, and reports all the
+ * problems found at once, without writing any class.
+ * <p>
+ * Classes that do not reference the library are skipped without being parsed.
+ */
+@CacheableTask
+public class BytecoderCheckTask extends DefaultTask {
+
+    private static final String CLASS_FILE_EXTENSION = ".class";
+
+    @Nonnull
+    private final WorkerExecutor workerExecutor;
+
+    private FileCollection classes;
+    private File reportFile;
+
+    @Inject
+    public BytecoderCheckTask(@Nonnull WorkerExecutor workerExecutor) {
+        this.workerExecutor = workerExecutor;
+    }
+
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public FileCollection getClasses() {
+        return classes;
+    }
+
+    public void setClasses(FileCollection classes) {
+        this.classes = classes;
+    }
+
+    @Input
+    public String getPluginVersion() {
+        return BytecoderTransform.getPluginVersion();
+    }
+
+    @OutputFile
+    public File getReportFile() {
+        return reportFile;
+    }
+
+    public void setReportFile(File reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    @TaskAction
+    public void check() throws IOException {
+
+        Path reportsDirectory = getTemporaryDir().toPath().resolve("reports");
+        Files.createDirectories(reportsDirectory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(reportsDirectory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        List<Path> reportFiles = new ArrayList<>();
+        List<File> inputFiles = new ArrayList<>();
+        for (File directory : classes) {
+            if (!directory.isDirectory()) {
+                continue;
+            }
+            try (Stream<Path> files = Files.walk(directory.toPath())) {
+                Iterator<Path> iterator = files.iterator();
+                while (iterator.hasNext()) {
+                    Path file = iterator.next();
+                    if (!file.getFileName().toString().endsWith(CLASS_FILE_EXTENSION)) {
+                        continue;
+                    }
+                    inputFiles.add(file.toFile());
+                    if (inputFiles.size() >= BytecoderWorkQueue.FILES_PER_WORK_ITEM) {
+                        submit(inputFiles, reportsDirectory, reportFiles);
+                        inputFiles = new ArrayList<>();
+                    }
+                }
+            }
+        }
+        if (!inputFiles.isEmpty()) {
+            submit(inputFiles, reportsDirectory, reportFiles);
+        }
+        workerExecutor.await();
+
+        List<String> problems = new ArrayList<>();
+        for (Path reportFile : reportFiles) {
+            problems.addAll(Files.readAllLines(reportFile, StandardCharsets.UTF_8));
+        }
+        // Work items finish in no particular order.
+        Collections.sort(problems);
+        Files.createDirectories(reportFile.getParentFile().toPath());
+        Files.write(reportFile.toPath(), problems, StandardCharsets.UTF_8);
+        if (!problems.isEmpty()) {
+            for (String problem : problems) {
+                getLogger().error(problem);
+            }
+            throw new GradleException(problems.size() + " problem(s) found in Bytecoder stubs,"
+                    + " see " + reportFile);
+        }
+    }
+
+    private void submit(@Nonnull List<File> inputFiles, @Nonnull Path reportsDirectory,
+                        @Nonnull List<Path> reportFiles) {
+        Path reportFile = reportsDirectory.resolve(Integer.toString(reportFiles.size()));
+        reportFiles.add(reportFile);
+        workerExecutor.submit(BytecoderCheckWorker.class, configuration -> {
+            configuration.setDisplayName("Bytecoder check " + inputFiles.get(0));
+            configuration.setIsolationMode(IsolationMode.CLASSLOADER);
+            configuration.classpath(BytecoderWorkQueue.WORKER_CLASSPATH);
+            configuration.params(inputFiles, reportFile.toFile());
+        });
+    }
+}
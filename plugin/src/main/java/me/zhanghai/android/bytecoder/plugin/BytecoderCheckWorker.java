@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BytecoderCheckWorker implements Runnable {
+
+    private final List<File> inputFiles;
+    private final File reportFile;
+
+    @Inject
+    public BytecoderCheckWorker(List<File> inputFiles, File reportFile) {
+        this.inputFiles = inputFiles;
+        this.reportFile = reportFile;
+    }
+
+    @Override
+    public void run() {
+        List<String> problems = new ArrayList<>();
+        try {
+            for (File inputFile : inputFiles) {
+                byte[] bytes = Files.readAllBytes(inputFile.toPath());
+                if (!BytecoderClassTranformer.mayTransform(bytes)) {
+                    continue;
+                }
+                problems.addAll(BytecoderClassTranformer.check(bytes));
+            }
+            Files.write(reportFile.toPath(), problems, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -17,30 +17,364 @@ import org.objectweb.asm.Type;
 import org.objectweb.asm.TypePath;
 
 import javax.annotation.Nonnull;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 class BytecoderClassTranformer {
 
+    /**
+     * The descriptor of the invisible annotation marking the stubs that can be deduplicated by
+     * {@link BytecoderStubDeduplicator}, which does not need to exist.
+     */
+    static final String STUB_DESCRIPTOR = "Lme/zhanghai/android/bytecoder/Stub;";
+
+    private static final byte[] LIBRARY_DESCRIPTOR_PREFIX =
+            "Lme/zhanghai/android/bytecoder/library/".getBytes(StandardCharsets.UTF_8);
+
     private BytecoderClassTranformer() {}
 
-    public static void transform(@Nonnull Path inputFile, @Nonnull Path outputFile)
-            throws IOException {
-        ClassReader reader = new ClassReader(Files.readAllBytes(inputFile));
+    public static void transform(@Nonnull Path inputFile, @Nonnull Path outputFile,
+                                 @Nonnull BytecoderOptions options,
+                                 @Nonnull BytecoderWriteStats stats) throws IOException {
+        if (!options.isEnabled()) {
+            linkOutput(inputFile, outputFile, stats);
+            return;
+        }
+        byte[] bytes = Files.readAllBytes(inputFile);
+        List<String> classVisitorFactoryClassNames = options.getClassVisitorFactoryClassNames();
+        if (options.isStubsOnly() && classVisitorFactoryClassNames.isEmpty()
+                && !mayTransform(bytes)) {
+            linkOutput(inputFile, outputFile, stats);
+            return;
+        }
+        Map<String, byte[]> generatedClasses = new LinkedHashMap<>();
+        File sharedDirectory = options.getSharedDirectory();
+        if (sharedDirectory != null) {
+            String fileName = outputFile.getFileName().toString();
+            Path entryDirectory = BytecoderSharedOutputs.getEntryDirectory(sharedDirectory.toPath(),
+                    fileName, bytes, options);
+            if (!Files.exists(entryDirectory)) {
+                byte[] transformedBytes = transform(bytes, options.isIsolateStubs(),
+                        classVisitorFactoryClassNames, options.isVerify(), options.getTracer(),
+                        generatedClasses);
+                BytecoderSharedOutputs.publish(entryDirectory, fileName, transformedBytes,
+                        generatedClasses);
+            }
+            BytecoderSharedOutputs.materialize(entryDirectory, outputFile, stats);
+            return;
+        }
+        stats.write(outputFile, transform(bytes, options.isIsolateStubs(),
+                classVisitorFactoryClassNames, options.isVerify(), options.getTracer(),
+                generatedClasses));
+        Set<String> generatedFileNames = new HashSet<>();
+        for (Map.Entry<String, byte[]> entry : generatedClasses.entrySet()) {
+            String generatedFileName = BytecoderHolders.getFileName(entry.getKey());
+            generatedFileNames.add(generatedFileName);
+            stats.write(outputFile.resolveSibling(generatedFileName), entry.getValue());
+        }
+        BytecoderHolders.deleteClassFiles(outputFile, generatedFileNames);
+    }
+
+    private static void linkOutput(@Nonnull Path inputFile, @Nonnull Path outputFile,
+                                   @Nonnull BytecoderWriteStats stats) throws IOException {
+        stats.link(outputFile, inputFile);
+        BytecoderHolders.deleteClassFiles(outputFile, Collections.emptySet());
+    }
+
+    /**
+     * Transform a class.
+     *
+     * @param isolateStubs whether to generate the transformed methods into holder classes for
+     *                     their target classes, and leave only forwarders in the original class
+     * @param generatedClasses the map to put the classes generated for the class in, by their
+     *                         internal names
+     * @return the transformed class
+     */
+    @Nonnull
+    public static byte[] transform(@Nonnull byte[] bytes, boolean isolateStubs,
+                                   @Nonnull Map<String, byte[]> generatedClasses) {
+        return transform(bytes, isolateStubs, Collections.emptyList(), false, null,
+                generatedClasses);
+    }
+
+    /**
+     * Transform a class, and chain the class visitors from the factories after the one of
+     * Bytecoder in the same pass.
+     *
+     * @param classVisitorFactoryClassNames the names of the classes of the factories
+     * @param verify whether to verify the stubs and the generated classes with
+     *               {@link BytecoderVerifier}
+     * @param tracer the tracer for stubs with {@code @Traced}, which also enables line numbers in
+     *               all the stubs, or {@code null} to disable tracing
+     * @see #transform(byte[], boolean, Map)
+     * @see BytecoderClassVisitorFactory
+     */
+    @Nonnull
+    public static byte[] transform(@Nonnull byte[] bytes, boolean isolateStubs,
+                                   @Nonnull List<String> classVisitorFactoryClassNames,
+                                   boolean verify, String tracer,
+                                   @Nonnull Map<String, byte[]> generatedClasses) {
+        ClassReader reader = new ClassReader(bytes);
         ClassWriter writer = new ClassWriter(reader, 0);
-        ClassVisitor visitor = new BytecoderClassVisitor(writer);
+        BytecoderClassVisitor visitor = new BytecoderClassVisitor(
+                BytecoderClassVisitorFactories.chain(classVisitorFactoryClassNames, writer),
+                isolateStubs, tracer, Collections.emptySet());
+        reader.accept(visitor, 0);
+        byte[] transformedBytes = writer.toByteArray();
+        if (verify) {
+            BytecoderVerifier.verify(transformedBytes, visitor.getGeneratedClasses(),
+                    visitor.getStubLineNumbers(), visitor.getSourceFile());
+        }
+        generatedClasses.putAll(visitor.getGeneratedClasses());
+        return transformedBytes;
+    }
+
+    /**
+     * Check whether a class may need to be transformed, without parsing it.
+     *
+     * @return {@code false} if the class does not reference anything in the library
+     */
+    public static boolean mayTransform(@Nonnull byte[] bytes) {
+        return contains(bytes, LIBRARY_DESCRIPTOR_PREFIX);
+    }
+
+    public static boolean contains(@Nonnull byte[] bytes, @Nonnull byte[] subBytes) {
+        outer:
+        for (int i = 0; i <= bytes.length - subBytes.length; ++i) {
+            for (int j = 0; j < subBytes.length; ++j) {
+                if (bytes[i + j] != subBytes[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the baseline profile rules for the methods used during startup in a class, and the
+     * classes generated for it.
+     *
+     * @param startupStubs the names of the classes, or of the methods in the form of
+     *                     {@code com.example.Foo#bar}, whose transformed methods are used during
+     *                     startup in addition to the ones with {@code @Startup}
+     * @see #transform(byte[], boolean, List, boolean, String, Map)
+     */
+    @Nonnull
+    public static List<String> getProfileRules(@Nonnull byte[] bytes, boolean isolateStubs,
+                                               String tracer, @Nonnull Set<String> startupStubs) {
+        ClassReader reader = new ClassReader(bytes);
+        BytecoderClassVisitor visitor = new BytecoderClassVisitor(new ClassWriter(reader, 0),
+                isolateStubs, tracer, startupStubs);
         reader.accept(visitor, 0);
-        Files.write(outputFile, writer.toByteArray());
+        return visitor.getProfileRules();
+    }
+
+    /**
+     * Check the stubs in a class without writing anything, and keep checking the other methods
+     * after one fails a check, so that all the problems in the class are found at once. The
+     * methods referring to a failed method are not reported again.
+     *
+     * @return the problems found, each prefixed with its source location
+     */
+    @Nonnull
+    public static List<String> check(@Nonnull byte[] bytes) {
+        ClassReader reader = new ClassReader(bytes);
+        List<String> problems = new ArrayList<>();
+        Set<String> failedMethods = new HashSet<>();
+        while (true) {
+            CheckClassVisitor visitor = new CheckClassVisitor(new BytecoderClassVisitor(
+                    new ClassWriter(0), false, null, Collections.emptySet()), failedMethods);
+            try {
+                reader.accept(visitor, 0);
+                return problems;
+            } catch (IllegalArgumentException e) {
+                problems.add(visitor.getLocation() + ": " + e.getMessage());
+                // Check the class again without the failed method, unless the class failed.
+                String method = visitor.getVisitingMethod();
+                if (method == null || !failedMethods.add(method)) {
+                    return problems;
+                }
+            }
+        }
+    }
+
+    public static void deleteOutput(@Nonnull Path outputFile) throws IOException {
+        Files.deleteIfExists(outputFile);
+        BytecoderHolders.deleteClassFiles(outputFile, Collections.emptySet());
+    }
+
+    private static class ProbeTarget {
+        public int opcode;
+        public Type classType;
+        public String memberName;
+        public Type[] parameterTypes;
+        public Type returnType;
+    }
+
+    /**
+     * Skips the methods that failed a check, and tracks the location of the method being visited.
+     */
+    private static class CheckClassVisitor extends ClassVisitor {
+
+        @Nonnull
+        private final BytecoderClassVisitor bytecoderClassVisitor;
+        @Nonnull
+        private final Set<String> skippedMethods;
+
+        private String internalName;
+        private String sourceFile;
+        private String visitingMethod;
+        private int visitingLineNumber;
+
+        public CheckClassVisitor(@Nonnull BytecoderClassVisitor cv,
+                                 @Nonnull Set<String> skippedMethods) {
+            super(Opcodes.ASM6, cv);
+
+            bytecoderClassVisitor = cv;
+            this.skippedMethods = skippedMethods;
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName,
+                          String[] interfaces) {
+            internalName = name;
+
+            super.visit(version, access, name, signature, superName, interfaces);
+        }
+
+        @Override
+        public void visitSource(String source, String debug) {
+            sourceFile = source;
+
+            super.visitSource(source, debug);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor,
+                                         String signature, String[] exceptions) {
+            String method = name + descriptor;
+            if (skippedMethods.contains(method)) {
+                bytecoderClassVisitor.addSkippedMethodName(name);
+                return null;
+            }
+            visitingMethod = method;
+            visitingLineNumber = 0;
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+            return new MethodVisitor(Opcodes.ASM6, mv) {
+                @Override
+                public void visitLineNumber(int line, Label start) {
+                    if (visitingLineNumber == 0) {
+                        visitingLineNumber = line;
+                    }
+                    super.visitLineNumber(line, start);
+                }
+
+                @Override
+                public void visitEnd() {
+                    super.visitEnd();
+                    visitingMethod = null;
+                }
+            };
+        }
+
+        /**
+         * Get the name and descriptor of the method being visited, or {@code null} if none.
+         */
+        public String getVisitingMethod() {
+            return visitingMethod;
+        }
+
+        /**
+         * Get the source location of what is being visited, e.g. {@code com/example/Foo.java:42}.
+         */
+        @Nonnull
+        public String getLocation() {
+            String className = internalName != null ? internalName : "?";
+            if (sourceFile == null) {
+                return className;
+            }
+            String location = className.substring(0, className.lastIndexOf('/') + 1) + sourceFile;
+            if (visitingMethod != null && visitingLineNumber != 0) {
+                location += ":" + visitingLineNumber;
+            }
+            return location;
+        }
     }
 
     private static class BytecoderClassVisitor extends ClassVisitor {
 
+        private static final Type TYPE_ACCESSOR = Type.getType(
+                BytecoderMethodVisitor.getDescriptor(
+                        BytecoderMethodVisitor.LIBRARY_CLASS_NAME_PREFIX + "Accessor"));
+
+        private static final String HOLDER_KIND_ACCESSOR = "Accessor";
+        private static final String ACCESSOR_NAME = "Impl";
+        private static final String ACCESSOR_FIELD_RECEIVER = "receiver";
+        private static final String HOLDER_KIND_FIELD = "Field";
+        private static final String HOLDER_KIND_STUBS = "Stubs";
+        private static final String HOLDER_KIND_AVAILABLE = "Available";
+        private static final String HOLDER_KIND_TRACE = "Trace";
+        private static final String TRACE_EVENT_NAME = "Event";
+        private static final String HOLDER_FIELD_VALUE = "VALUE";
+
+        private int version;
+        private int access;
+        private String internalName;
         private String className;
+        private String superName;
+        private String sourceFile;
+
+        private boolean hasAccessor;
+        private Type accessorClassType;
+        private boolean hasAccessorConstructor;
+        private ClassWriter accessorWriter;
 
-        public BytecoderClassVisitor(ClassVisitor cv) {
+        private final Map<String, Integer> candidatesMethodNames = new LinkedHashMap<>();
+        private final List<String> selectedCandidateMethodNames = new ArrayList<>();
+
+        private final Map<String, ProbeTarget> probeTargets = new HashMap<>();
+        private final Set<String> overloadedProbeTargetMethodNames = new HashSet<>();
+        private final Map<String, ProbeTarget> availableProbeTargets = new LinkedHashMap<>();
+        private final Map<String, String> availableMethodNames = new LinkedHashMap<>();
+        private final Set<String> skippedMethodNames = new HashSet<>();
+
+        private final Map<String, String> fieldHandleHolderNames = new HashMap<>();
+        private final Map<String, byte[]> generatedClasses = new LinkedHashMap<>();
+        private final Map<String, Integer> stubLineNumbers = new LinkedHashMap<>();
+
+        private final boolean isolateStubs;
+        private final Map<String, String> stubsHolderNames = new HashMap<>();
+        private final Map<String, ClassWriter> stubsWriters = new LinkedHashMap<>();
+
+        private final String tracer;
+
+        @Nonnull
+        private final Set<String> startupStubs;
+        private final List<String> startupMethods = new ArrayList<>();
+        private boolean visitingStartupMethod;
+        private final Set<String> startupGeneratedClassNames = new LinkedHashSet<>();
+
+        public BytecoderClassVisitor(ClassVisitor cv, boolean isolateStubs, String tracer,
+                                     @Nonnull Set<String> startupStubs) {
             super(Opcodes.ASM6, cv);
+
+            this.isolateStubs = isolateStubs;
+            this.tracer = tracer;
+            this.startupStubs = startupStubs;
         }
 
         @Override
@@ -48,19 +382,462 @@ class BytecoderClassTranformer {
                           String[] interfaces) {
             super.visit(version, access, name, signature, superName, interfaces);
 
+            this.version = version;
+            this.access = access;
+            internalName = name;
             className = name.replace('/', '.');
+            this.superName = superName;
+        }
+
+        @Override
+        public void visitSource(String source, String debug) {
+            super.visitSource(source, debug);
+
+            sourceFile = source;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+            Type annotationType = Type.getType(descriptor);
+            if (annotationType.equals(TYPE_ACCESSOR)) {
+                hasAccessor = true;
+                return new AccessorAnnotationVisitor();
+            } else {
+                return super.visitAnnotation(descriptor, visible);
+            }
         }
 
         @Override
         public MethodVisitor visitMethod(int access, String name, String desc, String signature,
                                          String[] exceptions) {
+            if (name.equals("<init>") && desc.equals("()V")
+                    && (access & Opcodes.ACC_PRIVATE) == 0) {
+                hasAccessorConstructor = true;
+            }
             MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
             if (mv != null) {
                 String method = className + '.' + name;
-                mv = new BytecoderMethodVisitor(method, access, desc, exceptions, mv);
+                mv = new BytecoderMethodVisitor(this, name, method, access, desc, exceptions, mv);
             }
             return mv;
         }
+
+        @Override
+        public void visitEnd() {
+            visitingStartupMethod = false;
+            for (Map.Entry<String, Integer> entry : candidatesMethodNames.entrySet()) {
+                if (entry.getValue() > 1) {
+                    throw new IllegalArgumentException("Method with @Candidate must not be"
+                            + " overloaded: " + className + '.' + entry.getKey());
+                }
+            }
+            for (String methodName : selectedCandidateMethodNames) {
+                if (!candidatesMethodNames.containsKey(methodName)
+                        && !skippedMethodNames.contains(methodName)) {
+                    throw new IllegalArgumentException("Method for @SelectedCandidate does not"
+                            + " have @Candidate: " + className + '.' + methodName);
+                }
+            }
+            if (hasAccessor) {
+                visitAccessorEnd();
+            }
+            visitAvailableHoldersEnd();
+            for (Map.Entry<String, ClassWriter> entry : stubsWriters.entrySet()) {
+                ClassWriter writer = entry.getValue();
+                writer.visitEnd();
+                addGeneratedClass(entry.getKey(), writer.toByteArray());
+            }
+
+            super.visitEnd();
+        }
+
+        private void visitAccessorEnd() {
+            if ((access & Opcodes.ACC_INTERFACE) == 0) {
+                if ((access & Opcodes.ACC_ABSTRACT) == 0) {
+                    throw new IllegalArgumentException("Class with @Accessor must be an interface"
+                            + " or an abstract class: " + className);
+                }
+                if (!hasAccessorConstructor) {
+                    throw new IllegalArgumentException("Class with @Accessor must have a"
+                            + " no-argument constructor accessible in its package: "
+                            + className);
+                }
+            }
+            ClassWriter writer = getAccessorWriter();
+            writer.visitEnd();
+            addGeneratedClass(getAccessorName(), writer.toByteArray());
+        }
+
+        private void visitAvailableHoldersEnd() {
+            for (Map.Entry<String, String> entry : availableMethodNames.entrySet()) {
+                String methodName = entry.getValue();
+                if (overloadedProbeTargetMethodNames.contains(methodName)) {
+                    throw new IllegalArgumentException("Method for @Available must not be"
+                            + " overloaded: " + className + '.' + methodName);
+                }
+                ProbeTarget probeTarget = probeTargets.get(methodName);
+                if (probeTarget == null) {
+                    if (skippedMethodNames.contains(methodName)) {
+                        continue;
+                    }
+                    throw new IllegalArgumentException("Method for @Available does not have an"
+                            + " annotation: " + className + '.' + methodName);
+                }
+                availableProbeTargets.put(entry.getKey(), probeTarget);
+            }
+            for (Map.Entry<String, ProbeTarget> entry : availableProbeTargets.entrySet()) {
+                String holderName = entry.getKey();
+                ProbeTarget probeTarget = entry.getValue();
+                if (probeTarget.memberName != null && probeTarget.memberName.indexOf('.') != -1) {
+                    throw new IllegalArgumentException("Method for @Available must not have a"
+                            + " field path: " + className + '.' + availableMethodNames.get(
+                            holderName));
+                }
+                ClassWriter writer = BytecoderHolders.newClassWriter(version, holderName);
+                writer.visitField(Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+                        HOLDER_FIELD_VALUE, Type.BOOLEAN_TYPE.getDescriptor(), null, null)
+                        .visitEnd();
+                BytecoderHolders.visitProbeMethod(writer, holderName, "probe",
+                        probeTarget.opcode, probeTarget.classType, probeTarget.memberName,
+                        probeTarget.parameterTypes, probeTarget.returnType);
+                MethodVisitor mv = writer.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null,
+                        null);
+                mv.visitCode();
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, holderName, "probe", "()Z", false);
+                mv.visitFieldInsn(Opcodes.PUTSTATIC, holderName, HOLDER_FIELD_VALUE,
+                        Type.BOOLEAN_TYPE.getDescriptor());
+                mv.visitInsn(Opcodes.RETURN);
+                mv.visitMaxs(0, 0);
+                mv.visitEnd();
+                writer.visitEnd();
+                addGeneratedClass(holderName, writer.toByteArray());
+            }
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public String getInternalName() {
+            return internalName;
+        }
+
+        public boolean hasAccessor() {
+            return hasAccessor;
+        }
+
+        public Type getAccessorClassType() {
+            return accessorClassType;
+        }
+
+        public String getAccessorName() {
+            return BytecoderHolders.getClassName(internalName, HOLDER_KIND_ACCESSOR,
+                    ACCESSOR_NAME);
+        }
+
+        /**
+         * Visit the instruction to load the held instance of the target class, with the instance
+         * of the accessor in local variable {@code 0}.
+         */
+        public void visitLoadAccessorReceiver(@Nonnull MethodVisitor mv) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitFieldInsn(Opcodes.GETFIELD, getAccessorName(), ACCESSOR_FIELD_RECEIVER,
+                    accessorClassType.getDescriptor());
+        }
+
+        @Nonnull
+        public ClassWriter getAccessorWriter() {
+            if (accessorWriter == null) {
+                if (accessorClassType == null) {
+                    throw new IllegalArgumentException("Class must have either classConstant or"
+                            + " className in @Accessor: " + className);
+                }
+                if ((access & Opcodes.ACC_FINAL) != 0) {
+                    throw new IllegalArgumentException("Class with @Accessor must not be final: "
+                            + className);
+                }
+                String accessorName = getAccessorName();
+                boolean isInterface = (access & Opcodes.ACC_INTERFACE) != 0;
+                String accessorSuperName = isInterface ? "java/lang/Object" : internalName;
+                String[] accessorInterfaces = isInterface ? new String[] { internalName } : null;
+                ClassWriter writer = BytecoderHolders.newClassWriter(version, accessorName,
+                        accessorSuperName, accessorInterfaces);
+                String receiverDescriptor = accessorClassType.getDescriptor();
+                writer.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL
+                        | Opcodes.ACC_SYNTHETIC, ACCESSOR_FIELD_RECEIVER, receiverDescriptor, null,
+                        null)
+                        .visitEnd();
+                MethodVisitor mv = writer.visitMethod(0, "<init>", "(Ljava/lang/Object;)V", null,
+                        null);
+                mv.visitCode();
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitMethodInsn(Opcodes.INVOKESPECIAL, accessorSuperName, "<init>", "()V",
+                        false);
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitVarInsn(Opcodes.ALOAD, 1);
+                mv.visitTypeInsn(Opcodes.CHECKCAST, accessorClassType.getInternalName());
+                mv.visitFieldInsn(Opcodes.PUTFIELD, accessorName, ACCESSOR_FIELD_RECEIVER,
+                        receiverDescriptor);
+                mv.visitInsn(Opcodes.RETURN);
+                mv.visitMaxs(0, 0);
+                mv.visitEnd();
+                accessorWriter = writer;
+            }
+            onGeneratedClassUsed(getAccessorName());
+            return accessorWriter;
+        }
+
+        /**
+         * Add the name of a method skipped after failing a check, so that the methods referring to
+         * it by name do not fail with follow-on problems.
+         */
+        public void addSkippedMethodName(@Nonnull String methodName) {
+            skippedMethodNames.add(methodName);
+        }
+
+        public void addCandidatesMethodName(@Nonnull String methodName) {
+            candidatesMethodNames.merge(methodName, 1, Integer::sum);
+        }
+
+        public void addSelectedCandidateMethodName(@Nonnull String methodName) {
+            selectedCandidateMethodNames.add(methodName);
+        }
+
+        /**
+         * Add the target of a method, which can be checked by another method with
+         * {@code @Available}.
+         */
+        public void addProbeTarget(@Nonnull String methodName, @Nonnull ProbeTarget probeTarget) {
+            if (probeTargets.put(methodName, probeTarget) != null) {
+                overloadedProbeTargetMethodNames.add(methodName);
+            }
+        }
+
+        /**
+         * Get the name of the holder for a method with {@code @Available}, whose holder is
+         * generated at the end of the class.
+         *
+         * @param probeTarget the target to check, or {@code null} for the target of the method
+         *                    with the name
+         */
+        @Nonnull
+        public String addAvailable(@Nonnull String name, ProbeTarget probeTarget,
+                                   String methodName) {
+            String holderName = BytecoderHolders.getClassName(internalName,
+                    HOLDER_KIND_AVAILABLE, name);
+            if (probeTarget != null) {
+                availableProbeTargets.put(holderName, probeTarget);
+            } else {
+                availableMethodNames.put(holderName, methodName);
+            }
+            onGeneratedClassUsed(holderName);
+            return holderName;
+        }
+
+        /**
+         * Get the name of the field handle holder for a field, which is shared by all the methods
+         * in this class accessing the same field.
+         */
+        @Nonnull
+        public String getFieldHandleHolderName(@Nonnull Type classType, @Nonnull String fieldName,
+                                               @Nonnull Type fieldType, boolean isStatic) {
+            String key = classType.getDescriptor() + '.' + fieldName + ':'
+                    + fieldType.getDescriptor() + (isStatic ? ":static" : "");
+            String holderName = fieldHandleHolderNames.get(key);
+            if (holderName == null) {
+                String holderSimpleName = fieldName;
+                holderName = BytecoderHolders.getClassName(internalName, HOLDER_KIND_FIELD,
+                        holderSimpleName);
+                for (int i = 2; generatedClasses.containsKey(holderName); ++i) {
+                    holderSimpleName = fieldName + '$' + i;
+                    holderName = BytecoderHolders.getClassName(internalName, HOLDER_KIND_FIELD,
+                            holderSimpleName);
+                }
+                addGeneratedClass(holderName, BytecoderFieldHandles.newHolder(version, holderName,
+                        classType, fieldName, fieldType, isStatic));
+                fieldHandleHolderNames.put(key, holderName);
+            }
+            onGeneratedClassUsed(holderName);
+            return holderName;
+        }
+
+        public boolean isIsolateStubs() {
+            return isolateStubs;
+        }
+
+        /**
+         * Get the name of the stubs holder for a target class, which is shared by all the methods
+         * in this class whose primary target is the same class, so that a target failing to
+         * resolve only fails the verification of the holder.
+         */
+        @Nonnull
+        public String getStubsHolderName(@Nonnull Type classType) {
+            String targetName = classType.getInternalName();
+            String holderName = stubsHolderNames.get(targetName);
+            if (holderName == null) {
+                String targetSimpleName = targetName.substring(targetName.lastIndexOf('/') + 1);
+                String holderSimpleName = targetSimpleName;
+                holderName = BytecoderHolders.getClassName(internalName, HOLDER_KIND_STUBS,
+                        holderSimpleName);
+                for (int i = 2; stubsWriters.containsKey(holderName); ++i) {
+                    holderSimpleName = targetSimpleName + '$' + i;
+                    holderName = BytecoderHolders.getClassName(internalName, HOLDER_KIND_STUBS,
+                            holderSimpleName);
+                }
+                ClassWriter writer = BytecoderHolders.newClassWriter(version, holderName);
+                // Line numbers in stubs are mapped to the source file of this class.
+                if (tracer != null && sourceFile != null) {
+                    writer.visitSource(sourceFile, null);
+                }
+                stubsWriters.put(holderName, writer);
+                stubsHolderNames.put(targetName, holderName);
+            }
+            onGeneratedClassUsed(holderName);
+            return holderName;
+        }
+
+        @Nonnull
+        public ClassWriter getStubsWriter(@Nonnull String holderName) {
+            return stubsWriters.get(holderName);
+        }
+
+        /**
+         * Get the tracer for stubs with {@code @Traced}, which also enables line numbers in all
+         * the stubs, or {@code null} if tracing is disabled.
+         *
+         * @see BytecoderTracing
+         */
+        public String getTracer() {
+            return tracer;
+        }
+
+        /**
+         * Get the name of the JFR event class for the traced stubs in this class.
+         */
+        @Nonnull
+        public String getTraceEventClassName() {
+            String eventClassName = BytecoderHolders.getClassName(internalName, HOLDER_KIND_TRACE,
+                    TRACE_EVENT_NAME);
+            if (!generatedClasses.containsKey(eventClassName)) {
+                addGeneratedClass(eventClassName, BytecoderTracing.newEventClass(version,
+                        eventClassName));
+            }
+            onGeneratedClassUsed(eventClassName);
+            return eventClassName;
+        }
+
+        public void addGeneratedClass(@Nonnull String internalName, @Nonnull byte[] bytes) {
+            generatedClasses.put(internalName, bytes);
+            onGeneratedClassUsed(internalName);
+        }
+
+        @Nonnull
+        public Map<String, byte[]> getGeneratedClasses() {
+            return generatedClasses;
+        }
+
+        public String getSourceFile() {
+            return sourceFile;
+        }
+
+        /**
+         * Record a method transformed as a stub, so that it can be verified and reported with its
+         * location.
+         *
+         * @param lineNumber the first line number of the method, or {@code 0} if unknown
+         */
+        public void addStub(@Nonnull String name, @Nonnull String descriptor, int lineNumber) {
+            stubLineNumbers.put(name + descriptor, lineNumber);
+        }
+
+        @Nonnull
+        public Map<String, Integer> getStubLineNumbers() {
+            return stubLineNumbers;
+        }
+
+        public boolean isStartupStub(@Nonnull String methodName) {
+            return startupStubs.contains(className) || startupStubs.contains(className + '#'
+                    + methodName);
+        }
+
+        public void addStartupMethod(@Nonnull String methodName, @Nonnull String descriptor) {
+            startupMethods.add(methodName + descriptor);
+        }
+
+        /**
+         * Set whether the end of a transformed method used during startup is being visited, so
+         * that the generated classes it uses are included in the profile.
+         */
+        public void setVisitingStartupMethod(boolean visitingStartupMethod) {
+            this.visitingStartupMethod = visitingStartupMethod;
+        }
+
+        private void onGeneratedClassUsed(@Nonnull String generatedClassName) {
+            if (visitingStartupMethod) {
+                startupGeneratedClassNames.add(generatedClassName);
+            }
+        }
+
+        /**
+         * @see <a href="https://developer.android.com/topic/performance/baselineprofiles">Baseline
+         * Profiles</a>
+         */
+        @Nonnull
+        public List<String> getProfileRules() {
+            List<String> rules = new ArrayList<>();
+            if (startupMethods.isEmpty()) {
+                return rules;
+            }
+            String classDescriptor = 'L' + internalName + ';';
+            rules.add(classDescriptor);
+            for (String method : startupMethods) {
+                rules.add("HSP" + classDescriptor + "->" + method);
+            }
+            for (String generatedClassName : startupGeneratedClassNames) {
+                String generatedClassDescriptor = 'L' + generatedClassName + ';';
+                rules.add(generatedClassDescriptor);
+                rules.add("HSP" + generatedClassDescriptor + "->**(**)**");
+            }
+            return rules;
+        }
+
+        private class AccessorAnnotationVisitor extends AnnotationVisitor {
+
+            public AccessorAnnotationVisitor() {
+                super(Opcodes.ASM6);
+            }
+
+            @Override
+            public void visit(String name, Object value) {
+                switch (name) {
+                    case "classConstant": {
+                        Type classType = (Type) value;
+                        if (!classType.equals(Type.VOID_TYPE)) {
+                            if (accessorClassType != null) {
+                                throw new IllegalArgumentException("Class must not have both"
+                                        + " classConstant and className in @Accessor: "
+                                        + className);
+                            }
+                            accessorClassType = classType;
+                        }
+                        break;
+                    }
+                    case "className": {
+                        String className = (String) value;
+                        if (!className.equals("")) {
+                            if (accessorClassType != null) {
+                                throw new IllegalArgumentException("Class must not have both"
+                                        + " classConstant and className in @Accessor: "
+                                        + BytecoderClassVisitor.this.className);
+                            }
+                            accessorClassType = Type.getType(BytecoderMethodVisitor.getDescriptor(
+                                    className));
+                        }
+                        break;
+                    }
+                }
+            }
+        }
     }
 
     private static class BytecoderMethodVisitor extends MethodVisitor {
@@ -85,26 +862,80 @@ class BytecoderClassTranformer {
                 LIBRARY_CLASS_NAME_PREFIX + "InvokeVirtual"));
         private static final Type TYPE_TYPE_NAME = Type.getType(getDescriptor(
                 LIBRARY_CLASS_NAME_PREFIX + "TypeName"));
-
+        private static final Type TYPE_CANDIDATE = Type.getType(getDescriptor(
+                LIBRARY_CLASS_NAME_PREFIX + "Candidate"));
+        private static final Type TYPE_CANDIDATES = Type.getType(getDescriptor(
+                LIBRARY_CLASS_NAME_PREFIX + "Candidates"));
+        private static final Type TYPE_SELECTED_CANDIDATE = Type.getType(getDescriptor(
+                LIBRARY_CLASS_NAME_PREFIX + "SelectedCandidate"));
+        private static final Type TYPE_MEMOIZE = Type.getType(getDescriptor(
+                LIBRARY_CLASS_NAME_PREFIX + "Memoize"));
+        private static final Type TYPE_NEW_ACCESSOR = Type.getType(getDescriptor(
+                LIBRARY_CLASS_NAME_PREFIX + "NewAccessor"));
+        private static final Type TYPE_COMPARE_AND_SET_FIELD = Type.getType(getDescriptor(
+                LIBRARY_CLASS_NAME_PREFIX + "CompareAndSetField"));
+        private static final Type TYPE_GET_AND_ADD_FIELD = Type.getType(getDescriptor(
+                LIBRARY_CLASS_NAME_PREFIX + "GetAndAddField"));
+        private static final Type TYPE_GET_FIELD_BATCH = Type.getType(getDescriptor(
+                LIBRARY_CLASS_NAME_PREFIX + "GetFieldBatch"));
+        private static final Type TYPE_STARTUP = Type.getType(getDescriptor(
+                LIBRARY_CLASS_NAME_PREFIX + "Startup"));
+        private static final Type TYPE_AVAILABLE = Type.getType(getDescriptor(
+                LIBRARY_CLASS_NAME_PREFIX + "Available"));
+        private static final Type TYPE_TRACED = Type.getType(getDescriptor(
+                LIBRARY_CLASS_NAME_PREFIX + "Traced"));
+
+        private static final Type TYPE_LIST = Type.getType(List.class);
+
+        private static final String HOLDER_KIND_CANDIDATES = "Candidates";
+        private static final String HOLDER_FIELD_SELECTOR = "SELECTOR";
+        private static final String HOLDER_KIND_MEMOIZED = "Memoized";
+        private static final String HOLDER_FIELD_VALUE = "VALUE";
+
+        private BytecoderClassVisitor classVisitor;
+        private String name;
         private String method;
         private int access;
+        private String descriptor;
+        private String[] exceptions;
         private Type[] parameterTypes;
         private Type returnType;
         private boolean throwsLinkageError;
+        private int firstLineNumber;
 
         private int annotatedOpcode;
         private Type annotatedClassType;
         private String annotatedMethodName;
         private String annotatedFieldName;
+        private Type[] annotatedFieldTypes;
+        private boolean annotatedNullSafe;
         private Type[] annotatedParameterTypes;
         private Type annotatedReturnType;
-
-        public BytecoderMethodVisitor(String method, int access, String descriptor,
+        private List<Candidate> annotatedCandidates = new ArrayList<>();
+        private String annotatedSelectedCandidateMethodName;
+        private boolean annotatedAvailable;
+        private Type annotatedAvailableClassType;
+        private String annotatedAvailableMethodName;
+        private boolean annotatedMemoize;
+        private boolean annotatedNewAccessor;
+        private String annotatedAccessMode;
+        private String annotatedFieldOperation;
+        private boolean annotatedBatch;
+        private boolean annotatedStartup;
+        private boolean annotatedTraced;
+        private String annotatedTraceSectionName;
+
+        public BytecoderMethodVisitor(BytecoderClassVisitor classVisitor, String name,
+                                      String method, int access, String descriptor,
                                       String[] exceptions, MethodVisitor mv) {
             super(Opcodes.ASM6, mv);
 
+            this.classVisitor = classVisitor;
+            this.name = name;
             this.method = method;
             this.access = access;
+            this.descriptor = descriptor;
+            this.exceptions = exceptions;
             parameterTypes = Type.getArgumentTypes(descriptor);
             returnType = Type.getReturnType(descriptor);
             throwsLinkageError = exceptions != null && Arrays.asList(exceptions).contains(
@@ -170,24 +1001,81 @@ class BytecoderClassTranformer {
                 }
                 annotatedOpcode = Opcodes.INVOKEVIRTUAL;
                 return new BytecoderAnnotationVisitor();
-            } else if (annotationType.equals(TYPE_TYPE_NAME)) {
-                return new ReturnTypeNameAnnotationVisitor();
-            } else {
-                return super.visitAnnotation(desc, visible);
-            }
-        }
-
-        @Override
-        public AnnotationVisitor visitParameterAnnotation(int parameter, String descriptor,
-                                                          boolean visible) {
-            Type annotationType = Type.getType(descriptor);
-            if (annotationType.equals(TYPE_TYPE_NAME)) {
-                if (annotatedParameterTypes == null) {
-                    annotatedParameterTypes = new Type[parameterTypes.length];
+            } else if (annotationType.equals(TYPE_COMPARE_AND_SET_FIELD)) {
+                if (hasBytecoderAnnotation()) {
+                    throw new IllegalArgumentException("Method has a duplicate annotation " + desc
+                            + ": " + method);
                 }
-                return new ParameterTypeNameAnnotationVisitor(parameter);
-            } else {
-                return super.visitParameterAnnotation(parameter, descriptor, visible);
+                annotatedOpcode = Opcodes.GETFIELD;
+                annotatedFieldOperation = BytecoderFieldHandles.OPERATION_COMPARE_AND_SET;
+                return new BytecoderAnnotationVisitor();
+            } else if (annotationType.equals(TYPE_GET_AND_ADD_FIELD)) {
+                if (hasBytecoderAnnotation()) {
+                    throw new IllegalArgumentException("Method has a duplicate annotation " + desc
+                            + ": " + method);
+                }
+                annotatedOpcode = Opcodes.GETFIELD;
+                annotatedFieldOperation = BytecoderFieldHandles.OPERATION_GET_AND_ADD;
+                return new BytecoderAnnotationVisitor();
+            } else if (annotationType.equals(TYPE_GET_FIELD_BATCH)) {
+                if (hasBytecoderAnnotation()) {
+                    throw new IllegalArgumentException("Method has a duplicate annotation " + desc
+                            + ": " + method);
+                }
+                annotatedOpcode = Opcodes.GETFIELD;
+                annotatedBatch = true;
+                return new BytecoderAnnotationVisitor();
+            } else if (annotationType.equals(TYPE_SELECTED_CANDIDATE)) {
+                if (hasBytecoderAnnotation()) {
+                    throw new IllegalArgumentException("Method has a duplicate annotation " + desc
+                            + ": " + method);
+                }
+                return new SelectedCandidateAnnotationVisitor();
+            } else if (annotationType.equals(TYPE_AVAILABLE)) {
+                if (hasBytecoderAnnotation()) {
+                    throw new IllegalArgumentException("Method has a duplicate annotation " + desc
+                            + ": " + method);
+                }
+                annotatedAvailable = true;
+                return new AvailableAnnotationVisitor();
+            } else if (annotationType.equals(TYPE_NEW_ACCESSOR)) {
+                if (hasBytecoderAnnotation()) {
+                    throw new IllegalArgumentException("Method has a duplicate annotation " + desc
+                            + ": " + method);
+                }
+                annotatedNewAccessor = true;
+                return null;
+            } else if (annotationType.equals(TYPE_TYPE_NAME)) {
+                return new ReturnTypeNameAnnotationVisitor();
+            } else if (annotationType.equals(TYPE_CANDIDATE)) {
+                return new CandidateAnnotationVisitor();
+            } else if (annotationType.equals(TYPE_CANDIDATES)) {
+                return new CandidatesAnnotationVisitor();
+            } else if (annotationType.equals(TYPE_MEMOIZE)) {
+                annotatedMemoize = true;
+                return null;
+            } else if (annotationType.equals(TYPE_STARTUP)) {
+                annotatedStartup = true;
+                return null;
+            } else if (annotationType.equals(TYPE_TRACED)) {
+                annotatedTraced = true;
+                return new TracedAnnotationVisitor();
+            } else {
+                return super.visitAnnotation(desc, visible);
+            }
+        }
+
+        @Override
+        public AnnotationVisitor visitParameterAnnotation(int parameter, String descriptor,
+                                                          boolean visible) {
+            Type annotationType = Type.getType(descriptor);
+            if (annotationType.equals(TYPE_TYPE_NAME)) {
+                if (annotatedParameterTypes == null) {
+                    annotatedParameterTypes = new Type[parameterTypes.length];
+                }
+                return new ParameterTypeNameAnnotationVisitor(parameter);
+            } else {
+                return super.visitParameterAnnotation(parameter, descriptor, visible);
             }
         }
 
@@ -360,6 +1248,8 @@ class BytecoderClassTranformer {
         public void visitLineNumber(int line, Label start) {
             if (!hasBytecoderAnnotation()) {
                 super.visitLineNumber(line, start);
+            } else if (firstLineNumber == 0) {
+                firstLineNumber = line;
             }
         }
 
@@ -372,7 +1262,13 @@ class BytecoderClassTranformer {
 
         @Override
         public void visitEnd() {
+            boolean isAccessorMethod = classVisitor.hasAccessor()
+                    && (access & Opcodes.ACC_ABSTRACT) != 0;
             if (!hasBytecoderAnnotation()) {
+                if (isAccessorMethod) {
+                    throw new IllegalArgumentException("Abstract method in a class with @Accessor"
+                            + " must have an annotation: " + method);
+                }
                 if (annotatedParameterTypes != null) {
                     throw new IllegalArgumentException("Method has a parameter with @TypeName but"
                             + " missing annotation: " + method);
@@ -381,15 +1277,261 @@ class BytecoderClassTranformer {
                     throw new IllegalArgumentException("Method has @TypeName but missing"
                             + " annotation: " + method);
                 }
+                if (!annotatedCandidates.isEmpty()) {
+                    throw new IllegalArgumentException("Method has @Candidate but missing"
+                            + " annotation: " + method);
+                }
+                if (annotatedMemoize) {
+                    throw new IllegalArgumentException("Method has @Memoize but missing"
+                            + " annotation: " + method);
+                }
+                if (annotatedStartup) {
+                    throw new IllegalArgumentException("Method has @Startup but missing"
+                            + " annotation: " + method);
+                }
+                if (annotatedTraced) {
+                    throw new IllegalArgumentException("Method has @Traced but missing"
+                            + " annotation: " + method);
+                }
                 super.visitEnd();
                 return;
             }
 
+            classVisitor.addStub(name, descriptor, firstLineNumber);
+
+            boolean isStartup = annotatedStartup || classVisitor.isStartupStub(name);
+            if (isStartup) {
+                classVisitor.addStartupMethod(name, descriptor);
+            }
+            classVisitor.setVisitingStartupMethod(isStartup);
+
+            if (annotatedTraced && (annotatedSelectedCandidateMethodName != null
+                    || annotatedAvailable || annotatedNewAccessor || annotatedMemoize)) {
+                throw new IllegalArgumentException("Method with @Traced must not have"
+                        + " @SelectedCandidate, @Available, @NewAccessor or @Memoize: " + method);
+            }
+
+            if (annotatedSelectedCandidateMethodName != null) {
+                if (annotatedMemoize) {
+                    throw new IllegalArgumentException("Method with @SelectedCandidate must not"
+                            + " have @Memoize: " + method);
+                }
+                visitSelectedCandidateEnd();
+                return;
+            }
+
+            if (annotatedAvailable) {
+                if (annotatedMemoize) {
+                    throw new IllegalArgumentException("Method with @Available must not have"
+                            + " @Memoize: " + method);
+                }
+                visitAvailableEnd();
+                return;
+            }
+
+            if (annotatedNewAccessor) {
+                if (annotatedMemoize) {
+                    throw new IllegalArgumentException("Method with @NewAccessor must not have"
+                            + " @Memoize: " + method);
+                }
+                visitNewAccessorEnd();
+                return;
+            }
+
+            if (annotatedClassType == null) {
+                annotatedClassType = classVisitor.getAccessorClassType();
+            }
             if (annotatedClassType == null) {
                 throw new IllegalArgumentException("Method must have either classConstant or"
                         + " className in its annotation");
             }
 
+            resolveAccessMode();
+
+            if (isAccessorMethod) {
+                visitAccessorMethodEnd();
+                return;
+            }
+
+            checkAccess();
+
+            Type[] parameterTypesWithAnnotated = getParameterTypesWithAnnotated();
+
+            Type returnTypeWithAnnotated = annotatedReturnType != null ? annotatedReturnType
+                    : returnType;
+
+            checkTarget(annotatedClassType, parameterTypesWithAnnotated, returnTypeWithAnnotated);
+
+            if (!throwsLinkageError) {
+                throw new IllegalArgumentException("Method must throw LinkageError: " + method);
+            }
+
+            String memberName = getMemberName(annotatedMethodName, annotatedFieldName);
+            checkFieldPath(memberName);
+
+            classVisitor.addProbeTarget(name, newProbeTarget(annotatedClassType, memberName,
+                    parameterTypesWithAnnotated, returnTypeWithAnnotated));
+
+            if (!annotatedCandidates.isEmpty()) {
+                if (annotatedMemoize) {
+                    throw new IllegalArgumentException("Method with @Candidate must not have"
+                            + " @Memoize: " + method);
+                }
+                if (annotatedFieldOperation != null) {
+                    throw new IllegalArgumentException("Method with @Candidate must use the plain"
+                            + " access mode: " + method);
+                }
+                if (isFieldPath(memberName)) {
+                    throw new IllegalArgumentException("Method with @Candidate must not have a"
+                            + " field path: " + method);
+                }
+                if (annotatedBatch) {
+                    throw new IllegalArgumentException("Method with @Candidate must not have"
+                            + " @GetFieldBatch: " + method);
+                }
+                visitCandidatesEnd(memberName, parameterTypesWithAnnotated,
+                        returnTypeWithAnnotated);
+                return;
+            }
+
+            if (annotatedMemoize) {
+                if (annotatedFieldOperation != null) {
+                    throw new IllegalArgumentException("Method with @Memoize must use the plain"
+                            + " access mode: " + method);
+                }
+                visitMemoizedEnd(memberName, returnTypeWithAnnotated);
+                return;
+            }
+
+            // Only stubs accessing their target directly can be identical across classes.
+            if (annotatedFieldOperation == null && !annotatedBatch && !isForwarded()) {
+                mv.visitAnnotation(STUB_DESCRIPTOR, false).visitEnd();
+            }
+
+            MethodVisitor stubMv = visitStubCode();
+
+            int maxStack = visitTarget(stubMv, annotatedClassType, memberName,
+                    parameterTypesWithAnnotated, returnTypeWithAnnotated);
+            int maxLocals = getParameterSize();
+            if (annotatedBatch) {
+                // The index and the size of the loop.
+                maxLocals += 2;
+            }
+
+            stubMv.visitMaxs(maxStack, maxLocals);
+
+            stubMv.visitEnd();
+        }
+
+        /**
+         * Begin the code of the stub, which is either the code of this method, or the code of a
+         * method in the stubs holder for the target class if stubs are isolated or this method is
+         * traced, in which case this method becomes a forwarder to it.
+         *
+         * @return the method visitor to visit the rest of the code of the stub with
+         */
+        private MethodVisitor visitStubCode() {
+            if (!isForwarded()) {
+                mv.visitCode();
+                visitStubLineNumber(mv);
+                return mv;
+            }
+            String holderName = classVisitor.getStubsHolderName(annotatedClassType);
+            mv.visitCode();
+            visitStubLineNumber(mv);
+            int parameterSize = getParameterSize();
+            int maxStack = Math.max(parameterSize, returnType.getSize());
+            int maxLocals = parameterSize;
+            String tracer = isTraced() ? classVisitor.getTracer() : null;
+            String eventClassName = null;
+            Label tryStartLabel = new Label();
+            Label tryEndLabel = new Label();
+            Label handlerLabel = new Label();
+            if (tracer != null) {
+                if (tracer.equals(BytecoderTracing.TRACER_JFR)) {
+                    eventClassName = classVisitor.getTraceEventClassName();
+                }
+                String sectionName = !annotatedTraceSectionName.isEmpty() ?
+                        annotatedTraceSectionName : BytecoderTracing.getSectionName(
+                        classVisitor.getInternalName().replace('/', '.'), name);
+                mv.visitTryCatchBlock(tryStartLabel, tryEndLabel, handlerLabel,
+                        "java/lang/Throwable");
+                maxStack = Math.max(maxStack, BytecoderTracing.visitBegin(mv, tracer,
+                        eventClassName, sectionName, parameterSize));
+                maxLocals += BytecoderTracing.getLocalSize(tracer);
+                mv.visitLabel(tryStartLabel);
+            }
+            int localIndex = 0;
+            for (Type parameterType : parameterTypes) {
+                mv.visitVarInsn(parameterType.getOpcode(Opcodes.ILOAD), localIndex);
+                localIndex += parameterType.getSize();
+            }
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, holderName, name, descriptor, false);
+            if (tracer != null) {
+                mv.visitLabel(tryEndLabel);
+                maxStack = Math.max(maxStack, returnType.getSize() + BytecoderTracing.visitEnd(
+                        mv, tracer, eventClassName, parameterSize));
+            }
+            mv.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+            if (tracer != null) {
+                mv.visitLabel(handlerLabel);
+                if ((classVisitor.getVersion() & 0xFFFF) >= Opcodes.V1_6) {
+                    Object[] stack = { "java/lang/Throwable" };
+                    if (eventClassName != null) {
+                        mv.visitFrame(Opcodes.F_FULL, parameterTypes.length + 1,
+                                getFrameLocals(eventClassName), 1, stack);
+                    } else {
+                        mv.visitFrame(Opcodes.F_SAME1, 0, null, 1, stack);
+                    }
+                }
+                maxStack = Math.max(maxStack, 1 + BytecoderTracing.visitEnd(mv, tracer,
+                        eventClassName, parameterSize));
+                mv.visitInsn(Opcodes.ATHROW);
+            }
+            mv.visitMaxs(maxStack, maxLocals);
+            mv.visitEnd();
+            MethodVisitor stubMv = classVisitor.getStubsWriter(holderName).visitMethod(
+                    Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, name, descriptor, null,
+                    exceptions);
+            stubMv.visitCode();
+            visitStubLineNumber(stubMv);
+            return stubMv;
+        }
+
+        private boolean isForwarded() {
+            return classVisitor.isIsolateStubs() || isTraced();
+        }
+
+        private boolean isTraced() {
+            return annotatedTraced && classVisitor.getTracer() != null;
+        }
+
+        /**
+         * Visit the line number of this method in the source file, so that the stub shows up with
+         * it in stack traces and profiles, if tracing is enabled.
+         */
+        private void visitStubLineNumber(MethodVisitor mv) {
+            if (classVisitor.getTracer() == null || firstLineNumber == 0) {
+                return;
+            }
+            Label label = new Label();
+            mv.visitLabel(label);
+            mv.visitLineNumber(firstLineNumber, label);
+        }
+
+        /**
+         * Get the locals of a frame with the parameters of this method and an additional local.
+         */
+        private Object[] getFrameLocals(Object additionalLocal) {
+            Object[] locals = new Object[parameterTypes.length + 1];
+            for (int i = 0; i < parameterTypes.length; ++i) {
+                locals[i] = getFrameType(parameterTypes[i]);
+            }
+            locals[parameterTypes.length] = additionalLocal;
+            return locals;
+        }
+
+        private void checkAccess() {
             if ((access & Opcodes.ACC_STATIC) == 0) {
                 throw new IllegalArgumentException("Method must be static: " + method);
             }
@@ -407,20 +1549,94 @@ class BytecoderClassTranformer {
                 throw new IllegalArgumentException("Method access must not have ACC_SYNTHETIC: "
                         + method);
             }
+        }
+
+        private void resolveAccessMode() {
+            if (annotatedAccessMode == null || annotatedAccessMode.equals("PLAIN")) {
+                return;
+            }
+            boolean isGet;
+            switch (annotatedOpcode) {
+                case Opcodes.GETFIELD:
+                case Opcodes.GETSTATIC:
+                    isGet = true;
+                    break;
+                case Opcodes.PUTFIELD:
+                case Opcodes.PUTSTATIC:
+                    isGet = false;
+                    break;
+                default:
+                    throw new IllegalArgumentException();
+            }
+            switch (annotatedAccessMode) {
+                case "OPAQUE":
+                    annotatedFieldOperation = isGet ? BytecoderFieldHandles.OPERATION_GET_OPAQUE
+                            : BytecoderFieldHandles.OPERATION_SET_OPAQUE;
+                    break;
+                case "ACQUIRE_RELEASE":
+                    annotatedFieldOperation = isGet ? BytecoderFieldHandles.OPERATION_GET_ACQUIRE
+                            : BytecoderFieldHandles.OPERATION_SET_RELEASE;
+                    break;
+                case "VOLATILE":
+                    annotatedFieldOperation = isGet ? BytecoderFieldHandles.OPERATION_GET_VOLATILE
+                            : BytecoderFieldHandles.OPERATION_SET_VOLATILE;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Method has an unknown access mode "
+                            + annotatedAccessMode + ": " + method);
+            }
+        }
+
+        private boolean isAtomicFieldOperation() {
+            return BytecoderFieldHandles.OPERATION_COMPARE_AND_SET.equals(annotatedFieldOperation)
+                    || BytecoderFieldHandles.OPERATION_GET_AND_ADD.equals(annotatedFieldOperation);
+        }
 
+        private Type[] getParameterTypesWithAnnotated() {
             Type[] parameterTypesWithAnnotated = new Type[parameterTypes.length];
             for (int i = 0; i < parameterTypes.length; ++i) {
                 parameterTypesWithAnnotated[i] = annotatedParameterTypes != null
                         && annotatedParameterTypes[i] != null ? annotatedParameterTypes[i]
                         : parameterTypes[i];
             }
+            return parameterTypesWithAnnotated;
+        }
 
-            Type returnTypeWithAnnotated = annotatedReturnType != null ? annotatedReturnType
-                    : returnType;
-
+        private void checkTarget(Type classType, Type[] parameterTypesWithAnnotated,
+                                 Type returnTypeWithAnnotated) {
+            if (annotatedBatch) {
+                checkBatchTarget(classType, parameterTypesWithAnnotated, returnTypeWithAnnotated);
+                return;
+            }
+            if (BytecoderFieldHandles.OPERATION_COMPARE_AND_SET.equals(annotatedFieldOperation)) {
+                if (parameterTypesWithAnnotated.length != 3) {
+                    throw new IllegalArgumentException("Method must only take an instance of the"
+                            + " target class as its first parameter, the expected value as its"
+                            + " second parameter and the new value as its third parameter: "
+                            + method);
+                }
+                if (!parameterTypesWithAnnotated[1].equals(parameterTypesWithAnnotated[2])) {
+                    throw new IllegalArgumentException("Method must declare its expected value and"
+                            + " new value to be the same type: " + method);
+                }
+                if (!returnTypeWithAnnotated.equals(Type.BOOLEAN_TYPE)) {
+                    throw new IllegalArgumentException("Method must return boolean: " + method);
+                }
+            } else if (BytecoderFieldHandles.OPERATION_GET_AND_ADD.equals(
+                    annotatedFieldOperation)) {
+                if (parameterTypesWithAnnotated.length != 2) {
+                    throw new IllegalArgumentException("Method must only take an instance of the"
+                            + " target class as its first parameter and the value to add as its"
+                            + " second parameter: " + method);
+                }
+                if (!returnTypeWithAnnotated.equals(parameterTypesWithAnnotated[1])) {
+                    throw new IllegalArgumentException("Method must return the same type as the"
+                            + " target field: " + method);
+                }
+            }
             switch (annotatedOpcode) {
                 case Opcodes.GETFIELD:
-                    if (parameterTypesWithAnnotated.length != 1) {
+                    if (!isAtomicFieldOperation() && parameterTypesWithAnnotated.length != 1) {
                         throw new IllegalArgumentException("Method must take an instance of the"
                                 + " target class as its only parameter: " + method);
                     }
@@ -454,7 +1670,7 @@ class BytecoderClassTranformer {
                         throw new IllegalArgumentException("Method must take an instance of the"
                                 + " target class as its first parameter: " + method);
                     }
-                    if (!parameterTypesWithAnnotated[0].equals(annotatedClassType)) {
+                    if (!parameterTypesWithAnnotated[0].equals(classType)) {
                         throw new IllegalArgumentException("Method must declare its first parameter"
                                 + " to be the same type as the target class: " + method);
                     }
@@ -476,37 +1692,179 @@ class BytecoderClassTranformer {
                     }
                     break;
                 case Opcodes.INVOKESPECIAL:
-                    if (!returnTypeWithAnnotated.equals(annotatedClassType)) {
+                    if (!returnTypeWithAnnotated.equals(classType)) {
                         throw new IllegalArgumentException("Method must return the same type as the"
                                 + " target class: " + method);
                     }
                     break;
             }
+        }
 
-            if (!throwsLinkageError) {
-                throw new IllegalArgumentException("Method must throw LinkageError: " + method);
+        private void checkBatchTarget(Type classType, Type[] parameterTypesWithAnnotated,
+                                      Type returnTypeWithAnnotated) {
+            if (parameterTypesWithAnnotated.length != 2) {
+                throw new IllegalArgumentException("Method must only take the instances of the"
+                        + " target class as its first parameter and the array for the values as"
+                        + " its second parameter: " + method);
+            }
+            Type instancesType = parameterTypesWithAnnotated[0];
+            if (parameterTypes[0].equals(TYPE_LIST)) {
+                if (!instancesType.equals(TYPE_LIST)) {
+                    throw new IllegalArgumentException("Method must not have @TypeName on its first"
+                            + " parameter when it is a List: " + method);
+                }
+            } else if (parameterTypes[0].getSort() != Type.ARRAY
+                    || instancesType.getSort() != Type.ARRAY
+                    || instancesType.getDimensions() != 1
+                    || !instancesType.getElementType().equals(classType)) {
+                throw new IllegalArgumentException("Method must declare its first parameter to be"
+                        + " an array of the target class or a List: " + method);
+            }
+            Type valuesType = parameterTypesWithAnnotated[1];
+            if (parameterTypes[1].getSort() != Type.ARRAY || valuesType.getSort() != Type.ARRAY
+                    || valuesType.getDimensions() != 1) {
+                throw new IllegalArgumentException("Method must declare its second parameter to be"
+                        + " an array of the type of the target field: " + method);
+            }
+            if (!returnTypeWithAnnotated.equals(Type.VOID_TYPE)) {
+                throw new IllegalArgumentException("Method must return void: " + method);
             }
+        }
 
-            mv.visitCode();
+        private String getMemberName(String methodName, String fieldName) {
+            switch (annotatedOpcode) {
+                case Opcodes.GETFIELD:
+                case Opcodes.GETSTATIC:
+                case Opcodes.PUTFIELD:
+                case Opcodes.PUTSTATIC:
+                    return fieldName;
+                case Opcodes.INVOKESPECIAL:
+                    return "<init>";
+                case Opcodes.INVOKEINTERFACE:
+                case Opcodes.INVOKESTATIC:
+                case Opcodes.INVOKEVIRTUAL:
+                    return methodName;
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+
+        private static boolean isFieldPath(String memberName) {
+            return memberName.indexOf('.') != -1;
+        }
+
+        private void checkFieldPath(String memberName) {
+            if (!isFieldPath(memberName)) {
+                if (annotatedFieldTypes != null) {
+                    throw new IllegalArgumentException("Method must not have fieldTypeNames without"
+                            + " a field path: " + method);
+                }
+                if (annotatedNullSafe) {
+                    throw new IllegalArgumentException("Method must not have nullSafe without a"
+                            + " field path: " + method);
+                }
+                return;
+            }
+            if (annotatedFieldOperation != null) {
+                throw new IllegalArgumentException("Method with a field path must use the plain"
+                        + " access mode: " + method);
+            }
+            String[] fieldNames = memberName.split("\\.", -1);
+            for (String fieldName : fieldNames) {
+                if (fieldName.isEmpty()) {
+                    throw new IllegalArgumentException("Method has an empty field name in its field"
+                            + " path: " + method);
+                }
+            }
+            if (annotatedFieldTypes == null
+                    || annotatedFieldTypes.length != fieldNames.length - 1) {
+                throw new IllegalArgumentException("Method must have a type name in"
+                        + " fieldTypeNames for each field but the last in its field path: "
+                        + method);
+            }
+        }
+
+        private int getParameterSize() {
+            int size = 0;
+            for (Type parameterType : parameterTypes) {
+                size += parameterType.getSize();
+            }
+            return size;
+        }
+
+        /**
+         * Visit the instructions to access the target with the parameters of this method, and
+         * return the result.
+         *
+         * @return the maximum stack size of the instructions
+         */
+        private int visitTarget(MethodVisitor mv, Type classType, String memberName,
+                                Type[] parameterTypesWithAnnotated, Type returnTypeWithAnnotated) {
+
+            int maxStack = visitTargetAccess(mv, classType, memberName,
+                    parameterTypesWithAnnotated, returnTypeWithAnnotated, false);
+
+            mv.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+            maxStack = Math.max(maxStack, returnType.getSize());
+
+            return maxStack;
+        }
+
+        /**
+         * Visit the instructions to access the target with the parameters of this method, leaving
+         * the result if any on the stack.
+         *
+         * @param isAccessor whether the instructions are for the generated implementation of
+         *                   {@code @Accessor}, so that the receiver is its held instance and the
+         *                   parameters start after {@code this}
+         * @return the maximum stack size of the instructions
+         */
+        private int visitTargetAccess(MethodVisitor mv, Type classType, String memberName,
+                                      Type[] parameterTypesWithAnnotated,
+                                      Type returnTypeWithAnnotated, boolean isAccessor) {
+
+            if (annotatedFieldOperation != null) {
+                return visitFieldHandleAccess(mv, classType, memberName,
+                        parameterTypesWithAnnotated, returnTypeWithAnnotated, isAccessor);
+            }
+
+            if (isFieldPath(memberName)) {
+                return visitFieldPathAccess(mv, classType, memberName,
+                        parameterTypesWithAnnotated, returnTypeWithAnnotated, isAccessor);
+            }
+
+            if (annotatedBatch) {
+                return visitBatchAccess(mv, classType, memberName, parameterTypesWithAnnotated);
+            }
 
             int maxStack = 0;
-            int maxLocals;
 
             if (annotatedOpcode == Opcodes.INVOKESPECIAL) {
-                mv.visitTypeInsn(Opcodes.NEW, annotatedClassType.getInternalName());
+                mv.visitTypeInsn(Opcodes.NEW, classType.getInternalName());
                 mv.visitInsn(Opcodes.DUP);
                 maxStack += 2;
             }
 
             int localIndex = 0;
-            for (Type parameterType : parameterTypes) {
-                mv.visitVarInsn(parameterType.getOpcode(Opcodes.ILOAD), localIndex);
+            if (isAccessor) {
+                localIndex = 1;
+                if (isInstanceOpcode(annotatedOpcode)) {
+                    classVisitor.visitLoadAccessorReceiver(mv);
+                    maxStack += 1;
+                }
+            }
+            int firstLocalIndex = localIndex;
+            // The receiver of an accessor is prepended to the parameter types with annotated.
+            int annotatedIndexOffset = parameterTypesWithAnnotated.length - parameterTypes.length;
+            for (int i = 0; i < parameterTypes.length; ++i) {
+                Type parameterType = parameterTypes[i];
+                visitLoadParameter(mv, parameterType,
+                        parameterTypesWithAnnotated[annotatedIndexOffset + i], localIndex);
                 localIndex += parameterType.getSize();
             }
-            maxStack += localIndex;
-            maxLocals = localIndex;
+            maxStack += localIndex - firstLocalIndex;
 
-            String targetClassInternalName = annotatedClassType.getInternalName();
+            String targetClassInternalName = classType.getInternalName();
 
             switch (annotatedOpcode) {
                 case Opcodes.GETFIELD:
@@ -514,24 +1872,11 @@ class BytecoderClassTranformer {
                 case Opcodes.PUTFIELD:
                 case Opcodes.PUTSTATIC: {
 
-                    Type targetFieldType;
-                    switch (annotatedOpcode) {
-                        case Opcodes.GETFIELD:
-                        case Opcodes.GETSTATIC:
-                            targetFieldType = returnTypeWithAnnotated;
-                            break;
-                        case Opcodes.PUTFIELD:
-                            targetFieldType = parameterTypesWithAnnotated[1];
-                            break;
-                        case Opcodes.PUTSTATIC:
-                            targetFieldType = parameterTypesWithAnnotated[0];
-                            break;
-                        default:
-                            throw new IllegalArgumentException();
-                    }
+                    Type targetFieldType = getTargetFieldType(parameterTypesWithAnnotated,
+                            returnTypeWithAnnotated);
                     String targetFieldDescriptor = targetFieldType.getDescriptor();
 
-                    mv.visitFieldInsn(annotatedOpcode, targetClassInternalName, annotatedFieldName,
+                    mv.visitFieldInsn(annotatedOpcode, targetClassInternalName, memberName,
                             targetFieldDescriptor);
 
                     break;
@@ -541,51 +1886,721 @@ class BytecoderClassTranformer {
                 case Opcodes.INVOKESTATIC:
                 case Opcodes.INVOKEVIRTUAL: {
 
-                    String targetMethodName = annotatedOpcode == Opcodes.INVOKESPECIAL ? "<init>"
-                            : annotatedMethodName;
-
                     Type targetReturnType = annotatedOpcode == Opcodes.INVOKESPECIAL ?
                             Type.VOID_TYPE : returnTypeWithAnnotated;
-                    Type[] targetParameterTypes;
-                    switch (annotatedOpcode) {
-                        case Opcodes.INVOKEINTERFACE:
-                        case Opcodes.INVOKEVIRTUAL:
-                            targetParameterTypes = new Type[parameterTypesWithAnnotated.length - 1];
-                            System.arraycopy(parameterTypesWithAnnotated, 1, targetParameterTypes,
-                                    0, targetParameterTypes.length);
-                            break;
-                        case Opcodes.INVOKESPECIAL:
-                        case Opcodes.INVOKESTATIC:
-                            targetParameterTypes = parameterTypesWithAnnotated;
-                            break;
-                        default:
-                            throw new IllegalArgumentException();
-                    }
+                    Type[] targetParameterTypes = getTargetMethodParameterTypes(
+                            parameterTypesWithAnnotated);
                     String targetMethodDescriptor = Type.getMethodDescriptor(targetReturnType,
                             targetParameterTypes);
 
                     boolean targetIsInterface = annotatedOpcode == Opcodes.INVOKEINTERFACE;
 
-                    mv.visitMethodInsn(annotatedOpcode, targetClassInternalName, targetMethodName,
+                    mv.visitMethodInsn(annotatedOpcode, targetClassInternalName, memberName,
                             targetMethodDescriptor, targetIsInterface);
 
                     break;
                 }
             }
 
-            int returnOpcode = returnType.getOpcode(Opcodes.IRETURN);
-            mv.visitInsn(returnOpcode);
-            if (returnOpcode != Opcodes.RETURN) {
-                maxStack = Math.max(maxStack, 1);
-            }
-
-            mv.visitMaxs(maxStack, maxLocals);
-
-            mv.visitEnd();
+            return Math.max(maxStack, returnType.getSize());
         }
 
-        private boolean hasBytecoderAnnotation() {
-            return annotatedOpcode != 0;
+        /**
+         * @see #visitTargetAccess(MethodVisitor, Type, String, Type[], Type, boolean)
+         */
+        private int visitFieldHandleAccess(MethodVisitor mv, Type classType, String memberName,
+                                           Type[] parameterTypesWithAnnotated,
+                                           Type returnTypeWithAnnotated, boolean isAccessor) {
+
+            Type targetFieldType = getTargetFieldType(parameterTypesWithAnnotated,
+                    returnTypeWithAnnotated);
+            int version = classVisitor.getVersion();
+            boolean isStatic = !isInstanceOpcode(annotatedOpcode);
+            BytecoderFieldHandles.checkOperation(version, annotatedFieldOperation, targetFieldType,
+                    isStatic, method);
+            String holderName = classVisitor.getFieldHandleHolderName(classType, memberName,
+                    targetFieldType, isStatic);
+
+            BytecoderFieldHandles.visitLoadHandle(mv, version, holderName);
+            int maxStack = 1;
+
+            int localIndex = isAccessor ? 1 : 0;
+            int parameterIndex = 0;
+            if (!isStatic) {
+                if (isAccessor) {
+                    classVisitor.visitLoadAccessorReceiver(mv);
+                } else {
+                    visitLoadParameter(mv, parameterTypes[0], parameterTypesWithAnnotated[0],
+                            localIndex);
+                    ++localIndex;
+                    ++parameterIndex;
+                }
+                maxStack += 1;
+            }
+            maxStack += BytecoderFieldHandles.visitLoadCoordinates(mv, version, holderName);
+            // The receiver of an accessor is prepended to the parameter types with annotated.
+            int annotatedIndexOffset = parameterTypesWithAnnotated.length - parameterTypes.length;
+            for (; parameterIndex < parameterTypes.length; ++parameterIndex) {
+                Type parameterType = parameterTypes[parameterIndex];
+                visitLoadParameter(mv, parameterType,
+                        parameterTypesWithAnnotated[annotatedIndexOffset + parameterIndex],
+                        localIndex);
+                localIndex += parameterType.getSize();
+                maxStack += parameterType.getSize();
+            }
+
+            BytecoderFieldHandles.visitOperation(mv, version, annotatedFieldOperation, classType,
+                    targetFieldType, isStatic, returnType);
+
+            return Math.max(maxStack, returnType.getSize());
+        }
+
+        /**
+         * Visit the instructions to access the last field in a field path through the previous
+         * ones, optionally skipping the access if any of them is {@code null}.
+         *
+         * @see #visitTargetAccess(MethodVisitor, Type, String, Type[], Type, boolean)
+         */
+        private int visitFieldPathAccess(MethodVisitor mv, Type classType, String memberName,
+                                         Type[] parameterTypesWithAnnotated,
+                                         Type returnTypeWithAnnotated, boolean isAccessor) {
+
+            String[] fieldNames = memberName.split("\\.");
+            Type targetFieldType = getTargetFieldType(parameterTypesWithAnnotated,
+                    returnTypeWithAnnotated);
+            boolean isGet = annotatedOpcode == Opcodes.GETFIELD
+                    || annotatedOpcode == Opcodes.GETSTATIC;
+
+            int localIndex = isAccessor ? 1 : 0;
+            int parameterIndex = 0;
+            if (isInstanceOpcode(annotatedOpcode)) {
+                if (isAccessor) {
+                    classVisitor.visitLoadAccessorReceiver(mv);
+                } else {
+                    visitLoadParameter(mv, parameterTypes[0], parameterTypesWithAnnotated[0],
+                            localIndex);
+                    ++localIndex;
+                    ++parameterIndex;
+                }
+                mv.visitFieldInsn(Opcodes.GETFIELD, classType.getInternalName(), fieldNames[0],
+                        annotatedFieldTypes[0].getDescriptor());
+            } else {
+                mv.visitFieldInsn(Opcodes.GETSTATIC, classType.getInternalName(), fieldNames[0],
+                        annotatedFieldTypes[0].getDescriptor());
+            }
+            int maxStack = 1;
+
+            Label nullLabel = annotatedNullSafe ? new Label() : null;
+            Type ownerType = annotatedFieldTypes[0];
+            for (int i = 1; i < fieldNames.length; ++i) {
+                if (nullLabel != null) {
+                    mv.visitInsn(Opcodes.DUP);
+                    mv.visitJumpInsn(Opcodes.IFNULL, nullLabel);
+                    maxStack = 2;
+                }
+                if (i == fieldNames.length - 1) {
+                    break;
+                }
+                mv.visitFieldInsn(Opcodes.GETFIELD, ownerType.getInternalName(), fieldNames[i],
+                        annotatedFieldTypes[i].getDescriptor());
+                ownerType = annotatedFieldTypes[i];
+            }
+
+            String lastFieldName = fieldNames[fieldNames.length - 1];
+            if (isGet) {
+                mv.visitFieldInsn(Opcodes.GETFIELD, ownerType.getInternalName(), lastFieldName,
+                        targetFieldType.getDescriptor());
+                maxStack = Math.max(maxStack, targetFieldType.getSize());
+            } else {
+                int valueSize = 0;
+                int annotatedIndexOffset = parameterTypesWithAnnotated.length
+                        - parameterTypes.length;
+                for (; parameterIndex < parameterTypes.length; ++parameterIndex) {
+                    Type parameterType = parameterTypes[parameterIndex];
+                    visitLoadParameter(mv, parameterType,
+                            parameterTypesWithAnnotated[annotatedIndexOffset + parameterIndex],
+                            localIndex);
+                    localIndex += parameterType.getSize();
+                    valueSize += parameterType.getSize();
+                }
+                mv.visitFieldInsn(Opcodes.PUTFIELD, ownerType.getInternalName(), lastFieldName,
+                        targetFieldType.getDescriptor());
+                maxStack = Math.max(maxStack, 1 + valueSize);
+            }
+
+            if (nullLabel != null) {
+                boolean hasFrames = (classVisitor.getVersion() & 0xFFFF) >= Opcodes.V1_6;
+                Label endLabel = new Label();
+                mv.visitJumpInsn(Opcodes.GOTO, endLabel);
+                mv.visitLabel(nullLabel);
+                if (hasFrames) {
+                    mv.visitFrame(Opcodes.F_SAME1, 0, null, 1, new Object[] {
+                            "java/lang/Object" });
+                }
+                mv.visitInsn(Opcodes.POP);
+                if (isGet) {
+                    visitPushDefaultValue(mv, returnType);
+                }
+                mv.visitLabel(endLabel);
+                if (hasFrames) {
+                    if (isGet) {
+                        mv.visitFrame(Opcodes.F_SAME1, 0, null, 1, new Object[] {
+                                getFrameType(returnType) });
+                    } else {
+                        mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+                    }
+                }
+            }
+
+            return Math.max(maxStack, returnType.getSize());
+        }
+
+        /**
+         * Visit the instruction to load a parameter, and a cast if its actual type is a different
+         * reference type, so that the code stays verifiable when it is declared as {@code Object}.
+         */
+        private static void visitLoadParameter(MethodVisitor mv, Type parameterType,
+                                               Type actualType, int localIndex) {
+            mv.visitVarInsn(parameterType.getOpcode(Opcodes.ILOAD), localIndex);
+            if (!actualType.equals(parameterType) && (actualType.getSort() == Type.OBJECT
+                    || actualType.getSort() == Type.ARRAY)) {
+                mv.visitTypeInsn(Opcodes.CHECKCAST, actualType.getInternalName());
+            }
+        }
+
+        private static void visitPushDefaultValue(MethodVisitor mv, Type type) {
+            switch (type.getSort()) {
+                case Type.BOOLEAN:
+                case Type.CHAR:
+                case Type.BYTE:
+                case Type.SHORT:
+                case Type.INT:
+                    mv.visitInsn(Opcodes.ICONST_0);
+                    break;
+                case Type.FLOAT:
+                    mv.visitInsn(Opcodes.FCONST_0);
+                    break;
+                case Type.LONG:
+                    mv.visitInsn(Opcodes.LCONST_0);
+                    break;
+                case Type.DOUBLE:
+                    mv.visitInsn(Opcodes.DCONST_0);
+                    break;
+                default:
+                    mv.visitInsn(Opcodes.ACONST_NULL);
+            }
+        }
+
+        /**
+         * Visit a loop getting the field from each instance in the first parameter into the array
+         * in the second parameter.
+         *
+         * @return the maximum stack size of the instructions
+         */
+        private int visitBatchAccess(MethodVisitor mv, Type classType, String fieldName,
+                                     Type[] parameterTypesWithAnnotated) {
+            boolean isList = parameterTypes[0].equals(TYPE_LIST);
+            Type fieldType = parameterTypesWithAnnotated[1].getElementType();
+            // The instances are loaded as their declared type, and cast one by one if necessary.
+            boolean needsCast = isList || !parameterTypes[0].getElementType().equals(classType);
+            int indexLocalIndex = 2;
+            int sizeLocalIndex = 3;
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            if (isList) {
+                mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, TYPE_LIST.getInternalName(), "size",
+                        "()I", true);
+            } else {
+                mv.visitInsn(Opcodes.ARRAYLENGTH);
+            }
+            mv.visitVarInsn(Opcodes.ISTORE, sizeLocalIndex);
+            mv.visitInsn(Opcodes.ICONST_0);
+            mv.visitVarInsn(Opcodes.ISTORE, indexLocalIndex);
+            boolean hasFrames = (classVisitor.getVersion() & 0xFFFF) >= Opcodes.V1_6;
+            Label loopLabel = new Label();
+            Label endLabel = new Label();
+            mv.visitLabel(loopLabel);
+            if (hasFrames) {
+                mv.visitFrame(Opcodes.F_APPEND, 2, new Object[] { Opcodes.INTEGER,
+                        Opcodes.INTEGER }, 0, null);
+            }
+            mv.visitVarInsn(Opcodes.ILOAD, indexLocalIndex);
+            mv.visitVarInsn(Opcodes.ILOAD, sizeLocalIndex);
+            mv.visitJumpInsn(Opcodes.IF_ICMPGE, endLabel);
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitVarInsn(Opcodes.ILOAD, indexLocalIndex);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitVarInsn(Opcodes.ILOAD, indexLocalIndex);
+            if (isList) {
+                mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, TYPE_LIST.getInternalName(), "get",
+                        "(I)Ljava/lang/Object;", true);
+            } else {
+                mv.visitInsn(Opcodes.AALOAD);
+            }
+            if (needsCast) {
+                mv.visitTypeInsn(Opcodes.CHECKCAST, classType.getInternalName());
+            }
+            mv.visitFieldInsn(Opcodes.GETFIELD, classType.getInternalName(), fieldName,
+                    fieldType.getDescriptor());
+            mv.visitInsn(fieldType.getOpcode(Opcodes.IASTORE));
+            mv.visitIincInsn(indexLocalIndex, 1);
+            mv.visitJumpInsn(Opcodes.GOTO, loopLabel);
+            mv.visitLabel(endLabel);
+            if (hasFrames) {
+                mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+            }
+            return 2 + Math.max(2, fieldType.getSize());
+        }
+
+        private static Object getFrameType(Type type) {
+            switch (type.getSort()) {
+                case Type.BOOLEAN:
+                case Type.CHAR:
+                case Type.BYTE:
+                case Type.SHORT:
+                case Type.INT:
+                    return Opcodes.INTEGER;
+                case Type.FLOAT:
+                    return Opcodes.FLOAT;
+                case Type.LONG:
+                    return Opcodes.LONG;
+                case Type.DOUBLE:
+                    return Opcodes.DOUBLE;
+                default:
+                    return type.getInternalName();
+            }
+        }
+
+        private Type getTargetFieldType(Type[] parameterTypesWithAnnotated,
+                                        Type returnTypeWithAnnotated) {
+            if (annotatedBatch) {
+                return parameterTypesWithAnnotated[1].getElementType();
+            }
+            if (isAtomicFieldOperation()) {
+                return parameterTypesWithAnnotated[1];
+            }
+            switch (annotatedOpcode) {
+                case Opcodes.GETFIELD:
+                case Opcodes.GETSTATIC:
+                    return returnTypeWithAnnotated;
+                case Opcodes.PUTFIELD:
+                    return parameterTypesWithAnnotated[1];
+                case Opcodes.PUTSTATIC:
+                    return parameterTypesWithAnnotated[0];
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+
+        private Type[] getTargetMethodParameterTypes(Type[] parameterTypesWithAnnotated) {
+            switch (annotatedOpcode) {
+                case Opcodes.INVOKEINTERFACE:
+                case Opcodes.INVOKEVIRTUAL: {
+                    Type[] targetParameterTypes = new Type[parameterTypesWithAnnotated.length - 1];
+                    System.arraycopy(parameterTypesWithAnnotated, 1, targetParameterTypes, 0,
+                            targetParameterTypes.length);
+                    return targetParameterTypes;
+                }
+                case Opcodes.INVOKESPECIAL:
+                case Opcodes.INVOKESTATIC:
+                    return parameterTypesWithAnnotated;
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+
+        private void visitCandidatesEnd(String memberName, Type[] parameterTypesWithAnnotated,
+                                        Type returnTypeWithAnnotated) {
+
+            classVisitor.addCandidatesMethodName(name);
+
+            int candidateCount = annotatedCandidates.size() + 1;
+            Type[] classTypes = new Type[candidateCount];
+            String[] memberNames = new String[candidateCount];
+            Type[][] candidateParameterTypes = new Type[candidateCount][];
+            Type[] candidateReturnTypes = new Type[candidateCount];
+            classTypes[0] = annotatedClassType;
+            memberNames[0] = memberName;
+            candidateParameterTypes[0] = parameterTypesWithAnnotated;
+            candidateReturnTypes[0] = returnTypeWithAnnotated;
+            for (int i = 1; i < candidateCount; ++i) {
+                Candidate candidate = annotatedCandidates.get(i - 1);
+                boolean hasClassType = candidate.classType != null;
+                classTypes[i] = hasClassType ? candidate.classType : annotatedClassType;
+                memberNames[i] = candidate.methodName != null || candidate.fieldName != null ?
+                        getMemberName(candidate.methodName, candidate.fieldName) : memberName;
+                if (isFieldPath(memberNames[i])) {
+                    throw new IllegalArgumentException("Method with @Candidate must not have a"
+                            + " field path: " + method);
+                }
+                if (candidate.parameterTypes != null) {
+                    if (candidate.parameterTypes.length != parameterTypes.length) {
+                        throw new IllegalArgumentException("Method must have the same number of"
+                                + " parameters as parameterTypeNames in @Candidate: " + method);
+                    }
+                    for (int j = 0; j < parameterTypes.length; ++j) {
+                        checkCandidateType(candidate.parameterTypes[j], parameterTypes[j]);
+                    }
+                    candidateParameterTypes[i] = candidate.parameterTypes;
+                } else {
+                    candidateParameterTypes[i] = parameterTypesWithAnnotated.clone();
+                    switch (annotatedOpcode) {
+                        case Opcodes.GETFIELD:
+                        case Opcodes.PUTFIELD:
+                        case Opcodes.INVOKEINTERFACE:
+                        case Opcodes.INVOKEVIRTUAL:
+                            if (hasClassType && candidateParameterTypes[i].length > 0) {
+                                candidateParameterTypes[i][0] = classTypes[i];
+                            }
+                            break;
+                    }
+                }
+                if (candidate.returnType != null) {
+                    checkCandidateType(candidate.returnType, returnType);
+                    candidateReturnTypes[i] = candidate.returnType;
+                } else if (annotatedOpcode == Opcodes.INVOKESPECIAL && hasClassType) {
+                    candidateReturnTypes[i] = classTypes[i];
+                } else {
+                    candidateReturnTypes[i] = returnTypeWithAnnotated;
+                }
+                checkTarget(classTypes[i], candidateParameterTypes[i], candidateReturnTypes[i]);
+            }
+
+            String holderName = BytecoderHolders.getClassName(classVisitor.getInternalName(),
+                    HOLDER_KIND_CANDIDATES, name);
+            visitCandidatesHolder(holderName, classTypes, memberNames, candidateParameterTypes,
+                    candidateReturnTypes);
+
+            MethodVisitor stubMv = visitStubCode();
+
+            stubMv.visitFieldInsn(Opcodes.GETSTATIC, holderName, HOLDER_FIELD_SELECTOR,
+                    Type.INT_TYPE.getDescriptor());
+            int maxStack = 1;
+            Label[] labels = new Label[candidateCount];
+            for (int i = 0; i < candidateCount; ++i) {
+                labels[i] = new Label();
+            }
+            Label defaultLabel = new Label();
+            stubMv.visitTableSwitchInsn(0, candidateCount - 1, defaultLabel, labels);
+            boolean hasFrames = (classVisitor.getVersion() & 0xFFFF) >= Opcodes.V1_6;
+            for (int i = 0; i < candidateCount; ++i) {
+                stubMv.visitLabel(labels[i]);
+                if (hasFrames) {
+                    stubMv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+                }
+                maxStack = Math.max(maxStack, visitTarget(stubMv, classTypes[i], memberNames[i],
+                        candidateParameterTypes[i], candidateReturnTypes[i]));
+            }
+            stubMv.visitLabel(defaultLabel);
+            if (hasFrames) {
+                stubMv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+            }
+            String errorInternalName;
+            switch (annotatedOpcode) {
+                case Opcodes.GETFIELD:
+                case Opcodes.GETSTATIC:
+                case Opcodes.PUTFIELD:
+                case Opcodes.PUTSTATIC:
+                    errorInternalName = "java/lang/NoSuchFieldError";
+                    break;
+                default:
+                    errorInternalName = "java/lang/NoSuchMethodError";
+            }
+            stubMv.visitTypeInsn(Opcodes.NEW, errorInternalName);
+            stubMv.visitInsn(Opcodes.DUP);
+            stubMv.visitLdcInsn("No candidate is available for " + method);
+            stubMv.visitMethodInsn(Opcodes.INVOKESPECIAL, errorInternalName, "<init>",
+                    "(Ljava/lang/String;)V", false);
+            stubMv.visitInsn(Opcodes.ATHROW);
+            maxStack = Math.max(maxStack, 3);
+
+            stubMv.visitMaxs(maxStack, getParameterSize());
+
+            stubMv.visitEnd();
+        }
+
+        private void checkCandidateType(Type candidateType, Type type) {
+            if (!candidateType.equals(type) && (!isReferenceType(candidateType)
+                    || !isReferenceType(type))) {
+                throw new IllegalArgumentException("Method must declare a reference type for"
+                        + " any parameter or return value with a different type in @Candidate: "
+                        + method);
+            }
+        }
+
+        private static boolean isReferenceType(Type type) {
+            int sort = type.getSort();
+            return sort == Type.OBJECT || sort == Type.ARRAY;
+        }
+
+        private void visitCandidatesHolder(String holderName, Type[] classTypes,
+                                           String[] memberNames, Type[][] candidateParameterTypes,
+                                           Type[] candidateReturnTypes) {
+            ClassWriter writer = BytecoderHolders.newClassWriter(classVisitor.getVersion(),
+                    holderName);
+            writer.visitField(Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+                    HOLDER_FIELD_SELECTOR, Type.INT_TYPE.getDescriptor(), null, null)
+                    .visitEnd();
+            int candidateCount = classTypes.length;
+            for (int i = 0; i < candidateCount; ++i) {
+                ProbeTarget probeTarget = newProbeTarget(classTypes[i], memberNames[i],
+                        candidateParameterTypes[i], candidateReturnTypes[i]);
+                BytecoderHolders.visitProbeMethod(writer, holderName, "probe" + i,
+                        probeTarget.opcode, probeTarget.classType, probeTarget.memberName,
+                        probeTarget.parameterTypes, probeTarget.returnType);
+            }
+            MethodVisitor mv = writer.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null,
+                    null);
+            mv.visitCode();
+            Label selected = new Label();
+            for (int i = 0; i < candidateCount; ++i) {
+                Label next = new Label();
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, holderName, "probe" + i, "()Z", false);
+                mv.visitJumpInsn(Opcodes.IFEQ, next);
+                BytecoderHolders.visitPushInt(mv, i);
+                mv.visitJumpInsn(Opcodes.GOTO, selected);
+                mv.visitLabel(next);
+            }
+            mv.visitInsn(Opcodes.ICONST_M1);
+            mv.visitLabel(selected);
+            mv.visitFieldInsn(Opcodes.PUTSTATIC, holderName, HOLDER_FIELD_SELECTOR,
+                    Type.INT_TYPE.getDescriptor());
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+            writer.visitEnd();
+            classVisitor.addGeneratedClass(holderName, writer.toByteArray());
+        }
+
+        private ProbeTarget newProbeTarget(Type classType, String memberName,
+                                           Type[] parameterTypesWithAnnotated,
+                                           Type returnTypeWithAnnotated) {
+            ProbeTarget probeTarget = new ProbeTarget();
+            probeTarget.opcode = annotatedOpcode;
+            probeTarget.classType = classType;
+            probeTarget.memberName = memberName;
+            switch (annotatedOpcode) {
+                case Opcodes.GETFIELD:
+                case Opcodes.GETSTATIC:
+                case Opcodes.PUTFIELD:
+                case Opcodes.PUTSTATIC:
+                    probeTarget.returnType = getTargetFieldType(parameterTypesWithAnnotated,
+                            returnTypeWithAnnotated);
+                    break;
+                case Opcodes.INVOKESPECIAL:
+                    probeTarget.returnType = Type.VOID_TYPE;
+                    probeTarget.parameterTypes = getTargetMethodParameterTypes(
+                            parameterTypesWithAnnotated);
+                    break;
+                default:
+                    probeTarget.returnType = returnTypeWithAnnotated;
+                    probeTarget.parameterTypes = getTargetMethodParameterTypes(
+                            parameterTypesWithAnnotated);
+            }
+            return probeTarget;
+        }
+
+        private void visitMemoizedEnd(String memberName, Type returnTypeWithAnnotated) {
+            switch (annotatedOpcode) {
+                case Opcodes.GETSTATIC:
+                case Opcodes.INVOKESTATIC:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Method with @Memoize must have either"
+                            + " @GetStatic or @InvokeStatic: " + method);
+            }
+            if (parameterTypes.length != 0) {
+                throw new IllegalArgumentException("Method with @Memoize must not take any"
+                        + " parameter: " + method);
+            }
+            if (returnType.equals(Type.VOID_TYPE)) {
+                throw new IllegalArgumentException("Method with @Memoize must not return void: "
+                        + method);
+            }
+
+            String holderName = BytecoderHolders.getClassName(classVisitor.getInternalName(),
+                    HOLDER_KIND_MEMOIZED, name);
+            String valueDescriptor = returnType.getDescriptor();
+            ClassWriter writer = BytecoderHolders.newClassWriter(classVisitor.getVersion(),
+                    holderName);
+            writer.visitField(Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+                    HOLDER_FIELD_VALUE, valueDescriptor, null, null)
+                    .visitEnd();
+            MethodVisitor holderMv = writer.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V",
+                    null, null);
+            holderMv.visitCode();
+            visitTargetAccess(holderMv, annotatedClassType, memberName, parameterTypes,
+                    returnTypeWithAnnotated, false);
+            holderMv.visitFieldInsn(Opcodes.PUTSTATIC, holderName, HOLDER_FIELD_VALUE,
+                    valueDescriptor);
+            holderMv.visitInsn(Opcodes.RETURN);
+            holderMv.visitMaxs(0, 0);
+            holderMv.visitEnd();
+            writer.visitEnd();
+            classVisitor.addGeneratedClass(holderName, writer.toByteArray());
+
+            mv.visitCode();
+            visitStubLineNumber(mv);
+            mv.visitFieldInsn(Opcodes.GETSTATIC, holderName, HOLDER_FIELD_VALUE, valueDescriptor);
+            mv.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+            mv.visitMaxs(returnType.getSize(), 0);
+            mv.visitEnd();
+        }
+
+        private static boolean isInstanceOpcode(int opcode) {
+            switch (opcode) {
+                case Opcodes.GETFIELD:
+                case Opcodes.PUTFIELD:
+                case Opcodes.INVOKEINTERFACE:
+                case Opcodes.INVOKEVIRTUAL:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private void visitAccessorMethodEnd() {
+            if ((access & Opcodes.ACC_BRIDGE) != 0) {
+                throw new IllegalArgumentException("Method access must not have ACC_BRIDGE: "
+                        + method);
+            }
+            if ((access & Opcodes.ACC_SYNTHETIC) != 0) {
+                throw new IllegalArgumentException("Method access must not have ACC_SYNTHETIC: "
+                        + method);
+            }
+            if (!annotatedCandidates.isEmpty() || annotatedMemoize) {
+                throw new IllegalArgumentException("Method in a class with @Accessor must not"
+                        + " have @Candidate or @Memoize: " + method);
+            }
+            if (annotatedBatch || annotatedTraced) {
+                throw new IllegalArgumentException("Method in a class with @Accessor must not"
+                        + " have @GetFieldBatch or @Traced: " + method);
+            }
+
+            Type[] parameterTypesWithAnnotated = getParameterTypesWithAnnotated();
+            if (isInstanceOpcode(annotatedOpcode)) {
+                Type[] parameterTypesWithReceiver = new Type[parameterTypesWithAnnotated.length
+                        + 1];
+                parameterTypesWithReceiver[0] = annotatedClassType;
+                System.arraycopy(parameterTypesWithAnnotated, 0, parameterTypesWithReceiver, 1,
+                        parameterTypesWithAnnotated.length);
+                parameterTypesWithAnnotated = parameterTypesWithReceiver;
+            }
+
+            Type returnTypeWithAnnotated = annotatedReturnType != null ? annotatedReturnType
+                    : returnType;
+
+            checkTarget(annotatedClassType, parameterTypesWithAnnotated, returnTypeWithAnnotated);
+
+            if (!throwsLinkageError) {
+                throw new IllegalArgumentException("Method must throw LinkageError: " + method);
+            }
+
+            String memberName = getMemberName(annotatedMethodName, annotatedFieldName);
+            checkFieldPath(memberName);
+
+            MethodVisitor accessorMv = classVisitor.getAccessorWriter().visitMethod(
+                    Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, name, descriptor, null, exceptions);
+            accessorMv.visitCode();
+            visitTargetAccess(accessorMv, annotatedClassType, memberName,
+                    parameterTypesWithAnnotated, returnTypeWithAnnotated, true);
+            accessorMv.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+            accessorMv.visitMaxs(0, 0);
+            accessorMv.visitEnd();
+
+            // Keep the abstract method without the annotations.
+            mv.visitEnd();
+        }
+
+        private void visitNewAccessorEnd() {
+            if (!classVisitor.hasAccessor()) {
+                throw new IllegalArgumentException("Method with @NewAccessor must be declared in a"
+                        + " class with @Accessor: " + method);
+            }
+            checkAccess();
+            if (parameterTypes.length != 1 || !isReferenceType(parameterTypes[0])) {
+                throw new IllegalArgumentException("Method must take an instance of the target"
+                        + " class as its only parameter: " + method);
+            }
+            if (!returnType.equals(Type.getObjectType(classVisitor.getInternalName()))) {
+                throw new IllegalArgumentException("Method must return the class with @Accessor: "
+                        + method);
+            }
+
+            String accessorName = classVisitor.getAccessorName();
+            mv.visitCode();
+            mv.visitTypeInsn(Opcodes.NEW, accessorName);
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKESPECIAL, accessorName, "<init>",
+                    "(Ljava/lang/Object;)V", false);
+            mv.visitInsn(Opcodes.ARETURN);
+            mv.visitMaxs(3, 1);
+            mv.visitEnd();
+        }
+
+        private void visitSelectedCandidateEnd() {
+            checkAccess();
+            if (parameterTypes.length != 0) {
+                throw new IllegalArgumentException("Method must not take any parameter: "
+                        + method);
+            }
+            if (!returnType.equals(Type.INT_TYPE) && !returnType.equals(Type.BOOLEAN_TYPE)) {
+                throw new IllegalArgumentException("Method must return int or boolean: "
+                        + method);
+            }
+
+            classVisitor.addSelectedCandidateMethodName(annotatedSelectedCandidateMethodName);
+            String holderName = BytecoderHolders.getClassName(classVisitor.getInternalName(),
+                    HOLDER_KIND_CANDIDATES, annotatedSelectedCandidateMethodName);
+
+            mv.visitCode();
+            mv.visitFieldInsn(Opcodes.GETSTATIC, holderName, HOLDER_FIELD_SELECTOR,
+                    Type.INT_TYPE.getDescriptor());
+            if (returnType.equals(Type.BOOLEAN_TYPE)) {
+                // (selector >>> 31) ^ 1, i.e. selector != -1.
+                mv.visitIntInsn(Opcodes.BIPUSH, 31);
+                mv.visitInsn(Opcodes.IUSHR);
+                mv.visitInsn(Opcodes.ICONST_1);
+                mv.visitInsn(Opcodes.IXOR);
+            }
+            mv.visitInsn(Opcodes.IRETURN);
+            mv.visitMaxs(2, 0);
+            mv.visitEnd();
+        }
+
+        private void visitAvailableEnd() {
+            checkAccess();
+            if (parameterTypes.length != 0) {
+                throw new IllegalArgumentException("Method must not take any parameter: "
+                        + method);
+            }
+            if (!returnType.equals(Type.BOOLEAN_TYPE)) {
+                throw new IllegalArgumentException("Method must return boolean: " + method);
+            }
+            if ((annotatedAvailableClassType != null) == (annotatedAvailableMethodName != null)) {
+                throw new IllegalArgumentException("Method must have either className or"
+                        + " methodName in @Available: " + method);
+            }
+
+            ProbeTarget probeTarget = null;
+            if (annotatedAvailableClassType != null) {
+                probeTarget = new ProbeTarget();
+                probeTarget.classType = annotatedAvailableClassType;
+            }
+            String holderName = classVisitor.addAvailable(name, probeTarget,
+                    annotatedAvailableMethodName);
+
+            mv.visitCode();
+            mv.visitFieldInsn(Opcodes.GETSTATIC, holderName, HOLDER_FIELD_VALUE,
+                    Type.BOOLEAN_TYPE.getDescriptor());
+            mv.visitInsn(Opcodes.IRETURN);
+            mv.visitMaxs(1, 0);
+            mv.visitEnd();
+        }
+
+        private boolean hasBytecoderAnnotation() {
+            return annotatedOpcode != 0 || annotatedSelectedCandidateMethodName != null
+                    || annotatedAvailable || annotatedNewAccessor;
         }
 
         /**
@@ -659,6 +2674,41 @@ class BytecoderClassTranformer {
                     case "fieldName":
                         annotatedFieldName = (String) value;
                         break;
+                    case "nullSafe":
+                        annotatedNullSafe = (Boolean) value;
+                        break;
+                }
+            }
+
+            @Override
+            public AnnotationVisitor visitArray(String name) {
+                switch (name) {
+                    case "fieldTypeNames": {
+                        List<Type> fieldTypes = new ArrayList<>();
+                        return new AnnotationVisitor(Opcodes.ASM6) {
+                            @Override
+                            public void visit(String name, Object value) {
+                                fieldTypes.add(Type.getType(getDescriptor((String) value)));
+                            }
+                            @Override
+                            public void visitEnd() {
+                                if (!fieldTypes.isEmpty()) {
+                                    annotatedFieldTypes = fieldTypes.toArray(new Type[0]);
+                                }
+                            }
+                        };
+                    }
+                    default:
+                        return null;
+                }
+            }
+
+            @Override
+            public void visitEnum(String name, String descriptor, String value) {
+                switch (name) {
+                    case "mode":
+                        annotatedAccessMode = value;
+                        break;
                 }
             }
         }
@@ -679,6 +2729,187 @@ class BytecoderClassTranformer {
             }
         }
 
+        private static class Candidate {
+            public Type classType;
+            public String methodName;
+            public String fieldName;
+            public Type[] parameterTypes;
+            public Type returnType;
+        }
+
+        private class CandidateAnnotationVisitor extends AnnotationVisitor {
+
+            private Candidate candidate = new Candidate();
+
+            public CandidateAnnotationVisitor() {
+                super(Opcodes.ASM6);
+            }
+
+            @Override
+            public void visit(String name, Object value) {
+                switch (name) {
+                    case "classConstant": {
+                        Type classType = (Type) value;
+                        if (!classType.equals(Type.VOID_TYPE)) {
+                            if (candidate.classType != null) {
+                                throw new IllegalArgumentException("Method must not have both"
+                                        + " classConstant and className in @Candidate: "
+                                        + method);
+                            }
+                            candidate.classType = classType;
+                        }
+                        break;
+                    }
+                    case "className": {
+                        String className = (String) value;
+                        if (!className.equals("")) {
+                            if (candidate.classType != null) {
+                                throw new IllegalArgumentException("Method must not have both"
+                                        + " classConstant and className in @Candidate: "
+                                        + method);
+                            }
+                            candidate.classType = Type.getType(getDescriptor(className));
+                        }
+                        break;
+                    }
+                    case "methodName": {
+                        String methodName = (String) value;
+                        if (!methodName.equals("")) {
+                            candidate.methodName = methodName;
+                        }
+                        break;
+                    }
+                    case "fieldName": {
+                        String fieldName = (String) value;
+                        if (!fieldName.equals("")) {
+                            candidate.fieldName = fieldName;
+                        }
+                        break;
+                    }
+                    case "returnTypeName": {
+                        String returnTypeName = (String) value;
+                        if (!returnTypeName.equals("")) {
+                            candidate.returnType = Type.getType(getDescriptor(returnTypeName));
+                        }
+                        break;
+                    }
+                }
+            }
+
+            @Override
+            public AnnotationVisitor visitArray(String name) {
+                switch (name) {
+                    case "parameterTypeNames": {
+                        List<Type> parameterTypes = new ArrayList<>();
+                        return new AnnotationVisitor(Opcodes.ASM6) {
+                            @Override
+                            public void visit(String name, Object value) {
+                                parameterTypes.add(Type.getType(getDescriptor((String) value)));
+                            }
+                            @Override
+                            public void visitEnd() {
+                                if (!parameterTypes.isEmpty()) {
+                                    candidate.parameterTypes = parameterTypes.toArray(
+                                            new Type[0]);
+                                }
+                            }
+                        };
+                    }
+                    default:
+                        return null;
+                }
+            }
+
+            @Override
+            public void visitEnd() {
+                annotatedCandidates.add(candidate);
+            }
+        }
+
+        private class CandidatesAnnotationVisitor extends AnnotationVisitor {
+
+            public CandidatesAnnotationVisitor() {
+                super(Opcodes.ASM6);
+            }
+
+            @Override
+            public AnnotationVisitor visitArray(String name) {
+                switch (name) {
+                    case "value":
+                        return new AnnotationVisitor(Opcodes.ASM6) {
+                            @Override
+                            public AnnotationVisitor visitAnnotation(String name,
+                                                                     String descriptor) {
+                                return new CandidateAnnotationVisitor();
+                            }
+                        };
+                    default:
+                        return null;
+                }
+            }
+        }
+
+        private class AvailableAnnotationVisitor extends AnnotationVisitor {
+
+            public AvailableAnnotationVisitor() {
+                super(Opcodes.ASM6);
+            }
+
+            @Override
+            public void visit(String name, Object value) {
+                switch (name) {
+                    case "className": {
+                        String className = (String) value;
+                        if (!className.equals("")) {
+                            annotatedAvailableClassType = Type.getType(getDescriptor(className));
+                        }
+                        break;
+                    }
+                    case "methodName": {
+                        String methodName = (String) value;
+                        if (!methodName.equals("")) {
+                            annotatedAvailableMethodName = methodName;
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+
+        private class TracedAnnotationVisitor extends AnnotationVisitor {
+
+            public TracedAnnotationVisitor() {
+                super(Opcodes.ASM6);
+
+                annotatedTraceSectionName = "";
+            }
+
+            @Override
+            public void visit(String name, Object value) {
+                switch (name) {
+                    case "sectionName":
+                        annotatedTraceSectionName = (String) value;
+                        break;
+                }
+            }
+        }
+
+        private class SelectedCandidateAnnotationVisitor extends AnnotationVisitor {
+
+            public SelectedCandidateAnnotationVisitor() {
+                super(Opcodes.ASM6);
+            }
+
+            @Override
+            public void visit(String name, Object value) {
+                switch (name) {
+                    case "methodName":
+                        annotatedSelectedCandidateMethodName = (String) value;
+                        break;
+                }
+            }
+        }
+
         private class ParameterTypeNameAnnotationVisitor extends AnnotationVisitor {
 
             private int index;
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.objectweb.asm.ClassVisitor;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+class BytecoderClassVisitorFactories {
+
+    // Factories are instantiated once for each worker class loader, which Gradle may reuse.
+    private static final Map<String, BytecoderClassVisitorFactory> INSTANCES =
+            new ConcurrentHashMap<>();
+
+    private BytecoderClassVisitorFactories() {}
+
+    /**
+     * Get the factory classes registered as services on the build script classpath.
+     */
+    @Nonnull
+    public static List<Class<? extends BytecoderClassVisitorFactory>> loadServices() {
+        List<Class<? extends BytecoderClassVisitorFactory>> factoryClasses = new ArrayList<>();
+        for (BytecoderClassVisitorFactory factory : ServiceLoader.load(
+                BytecoderClassVisitorFactory.class,
+                BytecoderClassVisitorFactory.class.getClassLoader())) {
+            factoryClasses.add(factory.getClass());
+        }
+        return factoryClasses;
+    }
+
+    @Nonnull
+    public static List<String> getClassNames(
+            @Nonnull List<Class<? extends BytecoderClassVisitorFactory>> factoryClasses) {
+        List<String> classNames = new ArrayList<>();
+        for (Class<? extends BytecoderClassVisitorFactory> factoryClass : factoryClasses) {
+            classNames.add(factoryClass.getName());
+        }
+        return classNames;
+    }
+
+    /**
+     * Get the files that the workers need on their classpath to load the factory classes.
+     */
+    @Nonnull
+    public static List<File> getClasspath(
+            @Nonnull List<Class<? extends BytecoderClassVisitorFactory>> factoryClasses) {
+        Set<File> classpath = new LinkedHashSet<>();
+        for (Class<? extends BytecoderClassVisitorFactory> factoryClass : factoryClasses) {
+            classpath.add(getClassSourceFile(factoryClass));
+        }
+        return new ArrayList<>(classpath);
+    }
+
+    @Nonnull
+    static File getClassSourceFile(@Nonnull Class<?> klass) {
+        try {
+            return new File(klass.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Chain the class visitors created by the factories, so that the first factory visits the
+     * class first.
+     */
+    @Nonnull
+    public static ClassVisitor chain(@Nonnull List<String> factoryClassNames,
+                                     @Nonnull ClassVisitor classVisitor) {
+        for (int i = factoryClassNames.size() - 1; i >= 0; --i) {
+            classVisitor = getInstance(factoryClassNames.get(i)).create(classVisitor);
+        }
+        return classVisitor;
+    }
+
+    @Nonnull
+    private static BytecoderClassVisitorFactory getInstance(@Nonnull String className) {
+        return INSTANCES.computeIfAbsent(className, className_ -> {
+            try {
+                return Class.forName(className_, true,
+                        BytecoderClassVisitorFactories.class.getClassLoader())
+                        .asSubclass(BytecoderClassVisitorFactory.class).getDeclaredConstructor()
+                        .newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Cannot instantiate class visitor factory: "
+                        + className_, e);
+            }
+        });
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.objectweb.asm.ClassVisitor;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A factory of class visitors that are chained after the one of Bytecoder, so that other
+ * rewrites can be done in the same pass without reading and writing every class again.
+ * <p>
+ * Factories are registered with {@link BytecoderExtension#classVisitorFactory(Class)}, or as
+ * services in {@code META-INF/services} on the build script classpath. They are instantiated
+ * with their public no-argument constructor in the workers, and are shared across threads.
+ * <p>
+ * Frames are not computed for the transformed classes, so class visitors must keep them valid,
+ * along with the maximum stack size and number of local variables.
+ */
+public interface BytecoderClassVisitorFactory {
+
+    /**
+     * Create a class visitor for a class.
+     *
+     * @param classVisitor the class visitor to delegate to
+     * @return the class visitor, or {@code classVisitor} to leave the class alone
+     */
+    @Nonnull
+    ClassVisitor create(@Nonnull ClassVisitor classVisitor);
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import com.android.build.api.transform.DirectoryInput;
+import com.android.build.api.transform.Format;
+import com.android.build.api.transform.JarInput;
+import com.android.build.api.transform.QualifiedContent;
+import com.android.build.api.transform.Transform;
+import com.android.build.api.transform.TransformInput;
+import com.android.build.api.transform.TransformInvocation;
+import com.android.build.api.transform.TransformOutputProvider;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Deduplicates identical stubs across the application and its modules with {@link
+ * BytecoderStubDeduplicator}.
+ * <p>
+ * The transform is always registered for applications because the extension is not configured
+ * yet at that time, but it only references its inputs without consuming them unless enabled.
+ */
+public class BytecoderDedupTransform extends Transform {
+
+    private static final Logger LOGGER = Logging.getLogger(BytecoderDedupTransform.class);
+
+    private static final String CLASS_FILE_EXTENSION = ".class";
+
+    @Nonnull
+    private final BytecoderExtension extension;
+
+    public BytecoderDedupTransform(@Nonnull BytecoderExtension extension) {
+        this.extension = extension;
+    }
+
+    @Override
+    public String getName() {
+        return "BytecoderDedup";
+    }
+
+    @Override
+    public Set<QualifiedContent.ContentType> getInputTypes() {
+        return Collections.singleton(QualifiedContent.DefaultContentType.CLASSES);
+    }
+
+    @Override
+    public Set<QualifiedContent.Scope> getScopes() {
+        if (!extension.isDeduplicateStubs()) {
+            return Collections.emptySet();
+        }
+        return EnumSet.of(QualifiedContent.Scope.PROJECT, QualifiedContent.Scope.SUB_PROJECTS);
+    }
+
+    @Override
+    public Set<QualifiedContent.Scope> getReferencedScopes() {
+        if (extension.isDeduplicateStubs()) {
+            return Collections.emptySet();
+        }
+        return Collections.singleton(QualifiedContent.Scope.PROJECT);
+    }
+
+    @Override
+    public Map<String, Object> getParameterInputs() {
+        Map<String, Object> parameterInputs = new HashMap<>();
+        parameterInputs.put("version", BytecoderTransform.getPluginVersion());
+        return parameterInputs;
+    }
+
+    @Override
+    public boolean isIncremental() {
+        return false;
+    }
+
+    @Override
+    public void transform(TransformInvocation transformInvocation) throws IOException {
+        if (!extension.isDeduplicateStubs()) {
+            return;
+        }
+
+        BytecoderStubDeduplicator deduplicator = new BytecoderStubDeduplicator();
+        for (TransformInput input : transformInvocation.getInputs()) {
+            for (JarInput jarInput : input.getJarInputs()) {
+                readJar(jarInput.getFile().toPath(), (name, bytes) -> {
+                    if (name.endsWith(CLASS_FILE_EXTENSION)) {
+                        deduplicator.scan(bytes);
+                    }
+                });
+            }
+            for (DirectoryInput directoryInput : input.getDirectoryInputs()) {
+                try (Stream<Path> files = Files.walk(directoryInput.getFile().toPath())) {
+                    Iterator<Path> iterator = files.iterator();
+                    while (iterator.hasNext()) {
+                        Path file = iterator.next();
+                        if (file.toString().endsWith(CLASS_FILE_EXTENSION)) {
+                            deduplicator.scan(Files.readAllBytes(file));
+                        }
+                    }
+                }
+            }
+        }
+        deduplicator.finishScan();
+
+        TransformOutputProvider outputProvider = transformInvocation.getOutputProvider();
+        outputProvider.deleteAll();
+        for (TransformInput input : transformInvocation.getInputs()) {
+            for (JarInput jarInput : input.getJarInputs()) {
+                TreeMap<String, byte[]> entries = new TreeMap<>();
+                readJar(jarInput.getFile().toPath(), (name, bytes) -> entries.put(name,
+                        name.endsWith(CLASS_FILE_EXTENSION) ? deduplicator.rewrite(bytes)
+                                : bytes));
+                Path jarFile = outputProvider.getContentLocation(jarInput.getName(),
+                        jarInput.getContentTypes(), jarInput.getScopes(), Format.JAR).toPath();
+                BytecoderJars.write(jarFile, entries);
+            }
+            for (DirectoryInput directoryInput : input.getDirectoryInputs()) {
+                Path inputDirectory = directoryInput.getFile().toPath();
+                Path outputDirectory = outputProvider.getContentLocation(directoryInput.getName(),
+                        directoryInput.getContentTypes(), directoryInput.getScopes(),
+                        Format.DIRECTORY).toPath();
+                try (Stream<Path> files = Files.walk(inputDirectory)) {
+                    Iterator<Path> iterator = files.iterator();
+                    while (iterator.hasNext()) {
+                        Path file = iterator.next();
+                        if (!Files.isRegularFile(file)) {
+                            continue;
+                        }
+                        Path outputFile = outputDirectory.resolve(inputDirectory.relativize(file));
+                        Files.createDirectories(outputFile.getParent());
+                        byte[] bytes = Files.readAllBytes(file);
+                        if (file.toString().endsWith(CLASS_FILE_EXTENSION)) {
+                            bytes = deduplicator.rewrite(bytes);
+                        }
+                        Files.write(outputFile, bytes);
+                    }
+                }
+            }
+        }
+        Map<String, byte[]> sharedClasses = deduplicator.getSharedClasses();
+        if (!sharedClasses.isEmpty()) {
+            Path outputDirectory = outputProvider.getContentLocation("shared", getInputTypes(),
+                    Collections.singleton(QualifiedContent.Scope.PROJECT), Format.DIRECTORY)
+                    .toPath();
+            for (Map.Entry<String, byte[]> entry : sharedClasses.entrySet()) {
+                Path sharedClassFile = outputDirectory.resolve(entry.getKey()
+                        + CLASS_FILE_EXTENSION);
+                Files.createDirectories(sharedClassFile.getParent());
+                Files.write(sharedClassFile, entry.getValue());
+            }
+        }
+
+        LOGGER.lifecycle("Bytecoder deduplicated {} stubs, saving {} method references",
+                deduplicator.getDeduplicatedCount(), deduplicator.getSavedCount());
+    }
+
+    private static void readJar(@Nonnull Path jarFile, @Nonnull JarEntryConsumer consumer)
+            throws IOException {
+        try (ZipInputStream inputStream = new ZipInputStream(new BufferedInputStream(
+                Files.newInputStream(jarFile)))) {
+            ZipEntry entry;
+            while ((entry = inputStream.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                consumer.accept(entry.getName(), BytecoderJars.readAllBytes(inputStream));
+            }
+        }
+    }
+
+    private interface JarEntryConsumer {
+        void accept(@Nonnull String name, @Nonnull byte[] bytes) throws IOException;
+    }
+}
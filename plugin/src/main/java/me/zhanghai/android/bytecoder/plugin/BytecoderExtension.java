@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.gradle.api.Action;
+import org.gradle.api.NamedDomainObjectContainer;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+public class BytecoderExtension {
+
+    @Nonnull
+    private final NamedDomainObjectContainer<BytecoderVariantExtension> variants;
+
+    private boolean jarOutput;
+
+    private boolean isolateStubs;
+
+    private boolean verify;
+
+    private boolean traceStubs;
+
+    private boolean transformDependencies;
+
+    private boolean deduplicateStubs;
+
+    private boolean baselineProfile;
+
+    @Nonnull
+    private List<String> startupStubs = new ArrayList<>();
+
+    @Nonnull
+    private List<Class<? extends BytecoderClassVisitorFactory>> classVisitorFactories =
+            new ArrayList<>();
+
+    private File hiddenApiSignatures;
+
+    @Nonnull
+    private String hiddenApiAccessorPackage = "hiddenapi";
+
+    public BytecoderExtension(
+            @Nonnull NamedDomainObjectContainer<BytecoderVariantExtension> variants) {
+        this.variants = variants;
+    }
+
+    /**
+     * The options for the variants with a name or a build type, e.g.
+     * {@code variants { debug { stubsOnly true } }}. The options for a variant name take precedence
+     * over the ones for a build type.
+     */
+    @Nonnull
+    public NamedDomainObjectContainer<BytecoderVariantExtension> getVariants() {
+        return variants;
+    }
+
+    public void variants(
+            @Nonnull Action<? super NamedDomainObjectContainer<BytecoderVariantExtension>> action) {
+        action.execute(variants);
+    }
+
+    /**
+     * Get the options for transforming the classes of a variant.
+     *
+     * @param sharedDirectory see {@link BytecoderSharedOutputs}
+     */
+    @Nonnull
+    BytecoderOptions getOptions(String variantName, String buildTypeName, File sharedDirectory) {
+        BytecoderVariantExtension variant = variantName != null ? variants.findByName(variantName)
+                : null;
+        if (variant == null && buildTypeName != null) {
+            variant = variants.findByName(buildTypeName);
+        }
+        boolean enabled = variant == null || variant.isEnabled();
+        boolean stubsOnly = variant != null && variant.isStubsOnly();
+        List<Class<? extends BytecoderClassVisitorFactory>> classVisitorFactories =
+                getAllClassVisitorFactories();
+        String tracer = traceStubs ? BytecoderTracing.TRACER_ANDROID : null;
+        return new BytecoderOptions(enabled, stubsOnly, isolateStubs, verify, tracer,
+                BytecoderClassVisitorFactories.getClassNames(classVisitorFactories),
+                BytecoderClassVisitorFactories.getClasspath(classVisitorFactories),
+                sharedDirectory);
+    }
+
+    /**
+     * Get the class visitor factories added here and the ones registered as services.
+     */
+    @Nonnull
+    List<Class<? extends BytecoderClassVisitorFactory>> getAllClassVisitorFactories() {
+        Set<Class<? extends BytecoderClassVisitorFactory>> allClassVisitorFactories =
+                new LinkedHashSet<>(classVisitorFactories);
+        allClassVisitorFactories.addAll(BytecoderClassVisitorFactories.loadServices());
+        return new ArrayList<>(allClassVisitorFactories);
+    }
+
+    /**
+     * Get a description of the options for all the variants, which changes whenever they change.
+     */
+    @Nonnull
+    String getVariantsDescription() {
+        return new TreeMap<>(variants.getAsMap()).values().toString();
+    }
+
+    /**
+     * Whether to output a single uncompressed jar for each input directory, instead of a
+     * directory with one file per class.
+     */
+    public boolean isJarOutput() {
+        return jarOutput;
+    }
+
+    public void setJarOutput(boolean jarOutput) {
+        this.jarOutput = jarOutput;
+    }
+
+    /**
+     * Whether to generate the code of transformed methods into holder classes for their target
+     * classes, and leave only forwarders in the original classes.
+     * <p>
+     * A reference that fails to resolve makes ART fail the verification of the class containing
+     * it, which then runs with access checks and cannot be fully compiled ahead of time. With this
+     * option, only the holder classes are affected.
+     */
+    public boolean isIsolateStubs() {
+        return isolateStubs;
+    }
+
+    public void setIsolateStubs(boolean isolateStubs) {
+        this.isolateStubs = isolateStubs;
+    }
+
+    /**
+     * Whether to verify the transformed stubs and the classes generated for them after each class
+     * is transformed, so that a stub generating invalid code, e.g. a receiver declared as
+     * {@code Object} of a field path, fails the build with its source location instead of failing
+     * verification on a device.
+     */
+    public boolean isVerify() {
+        return verify;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Whether to keep the line number of each stub in its generated code, so that the time spent
+     * in stubs is attributed to their declarations in profiles and stack traces, and to trace the
+     * stubs with {@code @Traced} with {@code android.os.Trace} sections on Android, or Java Flight
+     * Recorder events on the JVM.
+     * <p>
+     * Stubs are generated exactly as before when this is disabled.
+     */
+    public boolean isTraceStubs() {
+        return traceStubs;
+    }
+
+    public void setTraceStubs(boolean traceStubs) {
+        this.traceStubs = traceStubs;
+    }
+
+    /**
+     * Whether to also transform the class jars of dependencies from repositories for the runtime
+     * classpath, which Gradle caches across projects in its transform cache.
+     */
+    public boolean isTransformDependencies() {
+        return transformDependencies;
+    }
+
+    public void setTransformDependencies(boolean transformDependencies) {
+        this.transformDependencies = transformDependencies;
+    }
+
+    /**
+     * Whether to deduplicate the stubs with identical code within each package across an
+     * application and its modules, by keeping one copy of each and pointing the other stubs to it.
+     * This only applies to stubs accessing their target directly, and to applications.
+     *
+     * @see BytecoderStubDeduplicator
+     */
+    public boolean isDeduplicateStubs() {
+        return deduplicateStubs;
+    }
+
+    public void setDeduplicateStubs(boolean deduplicateStubs) {
+        this.deduplicateStubs = deduplicateStubs;
+    }
+
+    /**
+     * Whether to generate a baseline profile for the methods used during startup, merged with the
+     * baseline profiles in the source sets of each variant.
+     */
+    public boolean isBaselineProfile() {
+        return baselineProfile;
+    }
+
+    public void setBaselineProfile(boolean baselineProfile) {
+        this.baselineProfile = baselineProfile;
+    }
+
+    /**
+     * The names of the classes, or of the methods in the form of {@code com.example.Foo#bar},
+     * whose transformed methods are used during startup, in addition to the ones with
+     * {@code @Startup}.
+     */
+    @Nonnull
+    public List<String> getStartupStubs() {
+        return startupStubs;
+    }
+
+    public void setStartupStubs(@Nonnull List<String> startupStubs) {
+        this.startupStubs = startupStubs;
+    }
+
+    /**
+     * The classes of the factories for the class visitors chained after the one of Bytecoder, in
+     * the order that they visit the classes.
+     * <p>
+     * Their class visitors see every class, so classes are always rewritten when there are any,
+     * even in the stubs-only mode.
+     *
+     * @see BytecoderClassVisitorFactory
+     */
+    @Nonnull
+    public List<Class<? extends BytecoderClassVisitorFactory>> getClassVisitorFactories() {
+        return classVisitorFactories;
+    }
+
+    public void setClassVisitorFactories(
+            @Nonnull List<Class<? extends BytecoderClassVisitorFactory>> classVisitorFactories) {
+        this.classVisitorFactories = classVisitorFactories;
+    }
+
+    public void classVisitorFactory(
+            @Nonnull Class<? extends BytecoderClassVisitorFactory> classVisitorFactory) {
+        classVisitorFactories.add(classVisitorFactory);
+    }
+
+    /**
+     * The file of hidden API signatures to generate a jar of accessor classes for, which is added
+     * to the {@code implementation} dependencies so that no stub needs to be compiled from source.
+     *
+     * @see BytecoderHiddenApiAccessors
+     */
+    public File getHiddenApiSignatures() {
+        return hiddenApiSignatures;
+    }
+
+    public void setHiddenApiSignatures(File hiddenApiSignatures) {
+        this.hiddenApiSignatures = hiddenApiSignatures;
+    }
+
+    /**
+     * The package to generate the accessor classes for hidden API signatures in, which is
+     * {@code hiddenapi} by default.
+     */
+    @Nonnull
+    public String getHiddenApiAccessorPackage() {
+        return hiddenApiAccessorPackage;
+    }
+
+    public void setHiddenApiAccessorPackage(@Nonnull String hiddenApiAccessorPackage) {
+        this.hiddenApiAccessorPackage = hiddenApiAccessorPackage;
+    }
+}
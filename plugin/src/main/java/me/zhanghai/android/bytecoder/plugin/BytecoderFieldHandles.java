@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Field handle holders hold either a {@code VarHandle} for a field, or {@code sun.misc.Unsafe} and
+ * the offset of a field if the class file version is older than Java 9, in {@code static final}
+ * fields so that they are constants to the compiler.
+ * <p>
+ * Only the methods of {@code sun.misc.Unsafe} available on Android are used, which limits the
+ * fields supported before Java 9, as checked by
+ * {@link #checkOperation(int, String, Type, boolean, String)}.
+ * <p>
+ * Operations are named after the methods of {@code VarHandle}.
+ */
+class BytecoderFieldHandles {
+
+    public static final String OPERATION_GET_OPAQUE = "getOpaque";
+    public static final String OPERATION_GET_ACQUIRE = "getAcquire";
+    public static final String OPERATION_GET_VOLATILE = "getVolatile";
+    public static final String OPERATION_SET_OPAQUE = "setOpaque";
+    public static final String OPERATION_SET_RELEASE = "setRelease";
+    public static final String OPERATION_SET_VOLATILE = "setVolatile";
+    public static final String OPERATION_COMPARE_AND_SET = "compareAndSet";
+    public static final String OPERATION_GET_AND_ADD = "getAndAdd";
+
+    private static final String FIELD_HANDLE = "HANDLE";
+    private static final String FIELD_UNSAFE = "UNSAFE";
+    private static final String FIELD_OFFSET = "OFFSET";
+
+    private static final String VAR_HANDLE_INTERNAL_NAME = "java/lang/invoke/VarHandle";
+    private static final String UNSAFE_INTERNAL_NAME = "sun/misc/Unsafe";
+
+    private BytecoderFieldHandles() {}
+
+    public static boolean usesVarHandle(int version) {
+        return (version & 0xFFFF) >= Opcodes.V9;
+    }
+
+    @Nonnull
+    public static byte[] newHolder(int version, @Nonnull String holderName,
+                                   @Nonnull Type classType, @Nonnull String fieldName,
+                                   @Nonnull Type fieldType, boolean isStatic) {
+        ClassWriter writer = BytecoderHolders.newClassWriter(version, holderName);
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+        Label tryStart = new Label();
+        Label tryEnd = new Label();
+        Label handler = new Label();
+        Label lookupStart = new Label();
+        Label lookupEnd = new Label();
+        Label lookupHandler = new Label();
+        boolean usesVarHandle = usesVarHandle(version);
+        // The handler for the lookup in each class must come before the one for any failure.
+        if (!usesVarHandle) {
+            mv.visitTryCatchBlock(lookupStart, lookupEnd, lookupHandler,
+                    "java/lang/NoSuchFieldException");
+        }
+        mv.visitTryCatchBlock(tryStart, tryEnd, handler,
+                "java/lang/ReflectiveOperationException");
+        mv.visitLabel(tryStart);
+        if (usesVarHandle) {
+            writer.visitField(Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+                    FIELD_HANDLE, 'L' + VAR_HANDLE_INTERNAL_NAME + ';', null, null)
+                    .visitEnd();
+            BytecoderHolders.visitPushClass(mv, holderName, classType);
+            mv.visitVarInsn(Opcodes.ASTORE, 0);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup",
+                    "()Ljava/lang/invoke/MethodHandles$Lookup;", false);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/invoke/MethodHandles",
+                    "privateLookupIn", "(Ljava/lang/Class;Ljava/lang/invoke/MethodHandles$Lookup;)"
+                            + "Ljava/lang/invoke/MethodHandles$Lookup;", false);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitLdcInsn(fieldName);
+            BytecoderHolders.visitPushClass(mv, holderName, fieldType);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/invoke/MethodHandles$Lookup",
+                    isStatic ? "findStaticVarHandle" : "findVarHandle",
+                    "(Ljava/lang/Class;Ljava/lang/String;Ljava/lang/Class;)L"
+                            + VAR_HANDLE_INTERNAL_NAME + ';', false);
+            mv.visitFieldInsn(Opcodes.PUTSTATIC, holderName, FIELD_HANDLE,
+                    'L' + VAR_HANDLE_INTERNAL_NAME + ';');
+        } else {
+            String unsafeDescriptor = 'L' + UNSAFE_INTERNAL_NAME + ';';
+            writer.visitField(Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+                    FIELD_UNSAFE, unsafeDescriptor, null, null)
+                    .visitEnd();
+            writer.visitField(Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+                    FIELD_OFFSET, "J", null, null)
+                    .visitEnd();
+
+            mv.visitLdcInsn(Type.getObjectType(UNSAFE_INTERNAL_NAME));
+            mv.visitLdcInsn("theUnsafe");
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Class", "getDeclaredField",
+                    "(Ljava/lang/String;)Ljava/lang/reflect/Field;", false);
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitInsn(Opcodes.ICONST_1);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/reflect/Field", "setAccessible",
+                    "(Z)V", false);
+            mv.visitInsn(Opcodes.ACONST_NULL);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/reflect/Field", "get",
+                    "(Ljava/lang/Object;)Ljava/lang/Object;", false);
+            mv.visitTypeInsn(Opcodes.CHECKCAST, UNSAFE_INTERNAL_NAME);
+            mv.visitFieldInsn(Opcodes.PUTSTATIC, holderName, FIELD_UNSAFE, unsafeDescriptor);
+
+            // Unsafe does not check the field, so make sure it is the one declared. The field may
+            // be inherited, as with getfield and VarHandle.
+            Label fieldMatched = new Label();
+            Label fieldMismatched = new Label();
+            BytecoderHolders.visitPushClass(mv, holderName, classType);
+            BytecoderHolders.visitGetMember(mv, holderName, classType, fieldName, null,
+                    lookupStart, lookupEnd, lookupHandler);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/reflect/Field", "getType",
+                    "()Ljava/lang/Class;", false);
+            BytecoderHolders.visitPushClass(mv, holderName, fieldType);
+            mv.visitJumpInsn(Opcodes.IF_ACMPNE, fieldMismatched);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/reflect/Field", "getModifiers",
+                    "()I", false);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/reflect/Modifier", "isStatic",
+                    "(I)Z", false);
+            mv.visitJumpInsn(Opcodes.IFEQ, fieldMatched);
+            mv.visitLabel(fieldMismatched);
+            mv.visitTypeInsn(Opcodes.NEW, "java/lang/NoSuchFieldError");
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitLdcInsn(fieldName);
+            mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/NoSuchFieldError", "<init>",
+                    "(Ljava/lang/String;)V", false);
+            mv.visitInsn(Opcodes.ATHROW);
+            mv.visitLabel(fieldMatched);
+
+            mv.visitFieldInsn(Opcodes.GETSTATIC, holderName, FIELD_UNSAFE, unsafeDescriptor);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, UNSAFE_INTERNAL_NAME, "objectFieldOffset",
+                    "(Ljava/lang/reflect/Field;)J", false);
+            mv.visitFieldInsn(Opcodes.PUTSTATIC, holderName, FIELD_OFFSET, "J");
+        }
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitLabel(tryEnd);
+        // Rethrow as a LinkageError with the cause, instead of an ExceptionInInitializerError.
+        mv.visitLabel(handler);
+        mv.visitVarInsn(Opcodes.ASTORE, 0);
+        mv.visitTypeInsn(Opcodes.NEW, "java/lang/NoSuchFieldError");
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitLdcInsn(fieldName);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/NoSuchFieldError", "<init>",
+                "(Ljava/lang/String;)V", false);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Throwable", "initCause",
+                "(Ljava/lang/Throwable;)Ljava/lang/Throwable;", false);
+        mv.visitInsn(Opcodes.ATHROW);
+        // Frames and maxs are computed by the class writer.
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * Check whether an operation is supported for a field, and throw an
+     * {@link IllegalArgumentException} with the message if not.
+     * <p>
+     * {@code sun.misc.Unsafe} on Android has neither the methods for static fields nor the
+     * volatile accessors for primitive types other than {@code int} and {@code long}, so these are
+     * only supported with {@code VarHandle}. Its {@code getAndAdd} methods are only available since
+     * Android 7.0 (API level 24), which cannot be checked here and is documented instead.
+     */
+    public static void checkOperation(int version, @Nonnull String operation,
+                                      @Nonnull Type fieldType, boolean isStatic,
+                                      @Nonnull String method) {
+        if (!usesVarHandle(version)) {
+            if (isStatic) {
+                throw new IllegalArgumentException("Method with an access mode other than plain"
+                        + " must be for an instance field before Java 9: " + method);
+            }
+            if (!isUnsafeAtomicType(fieldType)) {
+                throw new IllegalArgumentException("Method with an access mode other than plain"
+                        + " must be for an int, long or reference field before Java 9: "
+                        + method);
+            }
+        }
+        switch (operation) {
+            case OPERATION_GET_AND_ADD:
+                if (fieldType.getSort() != Type.INT && fieldType.getSort() != Type.LONG) {
+                    throw new IllegalArgumentException("Method with @GetAndAddField must be for an"
+                            + " int or long field: " + method);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Visit the instruction to load the field handle, before loading the receiver if any.
+     */
+    public static void visitLoadHandle(@Nonnull MethodVisitor mv, int version,
+                                       @Nonnull String holderName) {
+        if (usesVarHandle(version)) {
+            mv.visitFieldInsn(Opcodes.GETSTATIC, holderName, FIELD_HANDLE,
+                    'L' + VAR_HANDLE_INTERNAL_NAME + ';');
+        } else {
+            mv.visitFieldInsn(Opcodes.GETSTATIC, holderName, FIELD_UNSAFE,
+                    'L' + UNSAFE_INTERNAL_NAME + ';');
+        }
+    }
+
+    /**
+     * Visit the instructions to load the field coordinates after loading the receiver if any,
+     * before loading the values.
+     *
+     * @return the stack size of the instructions
+     */
+    public static int visitLoadCoordinates(@Nonnull MethodVisitor mv, int version,
+                                           @Nonnull String holderName) {
+        if (usesVarHandle(version)) {
+            return 0;
+        }
+        mv.visitFieldInsn(Opcodes.GETSTATIC, holderName, FIELD_OFFSET, "J");
+        return 2;
+    }
+
+    /**
+     * Visit the instructions to perform the operation, with the handle, the coordinates and the
+     * values on the stack, leaving the result if any of the type for the operation on the stack.
+     */
+    public static void visitOperation(@Nonnull MethodVisitor mv, int version,
+                                      @Nonnull String operation, @Nonnull Type classType,
+                                      @Nonnull Type fieldType, boolean isStatic,
+                                      @Nonnull Type resultType) {
+        if (usesVarHandle(version)) {
+            Type[] valueTypes = getValueTypes(operation, fieldType);
+            Type[] parameterTypes;
+            if (isStatic) {
+                parameterTypes = valueTypes;
+            } else {
+                parameterTypes = new Type[valueTypes.length + 1];
+                parameterTypes[0] = classType;
+                System.arraycopy(valueTypes, 0, parameterTypes, 1, valueTypes.length);
+            }
+            // VarHandle methods are signature polymorphic, so the descriptor has the exact types.
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, VAR_HANDLE_INTERNAL_NAME, operation,
+                    Type.getMethodDescriptor(getResultType(operation, fieldType), parameterTypes),
+                    false);
+            return;
+        }
+
+        String typeName = getUnsafeTypeName(fieldType);
+        Type unsafeFieldType = fieldType.getSort() == Type.OBJECT
+                || fieldType.getSort() == Type.ARRAY ? Type.getType(Object.class) : fieldType;
+        String unsafeMethodName;
+        switch (operation) {
+            case OPERATION_GET_OPAQUE:
+            case OPERATION_GET_ACQUIRE:
+            case OPERATION_GET_VOLATILE:
+                unsafeMethodName = "get" + typeName + "Volatile";
+                break;
+            case OPERATION_SET_RELEASE:
+                unsafeMethodName = "putOrdered" + typeName;
+                break;
+            case OPERATION_SET_OPAQUE:
+            case OPERATION_SET_VOLATILE:
+                unsafeMethodName = "put" + typeName + "Volatile";
+                break;
+            case OPERATION_COMPARE_AND_SET:
+                unsafeMethodName = "compareAndSwap" + typeName;
+                break;
+            case OPERATION_GET_AND_ADD:
+                unsafeMethodName = "getAndAdd" + typeName;
+                break;
+            default:
+                throw new IllegalArgumentException(operation);
+        }
+        Type[] valueTypes = getValueTypes(operation, unsafeFieldType);
+        Type[] parameterTypes = new Type[valueTypes.length + 2];
+        parameterTypes[0] = Type.getType(Object.class);
+        parameterTypes[1] = Type.LONG_TYPE;
+        System.arraycopy(valueTypes, 0, parameterTypes, 2, valueTypes.length);
+        Type unsafeResultType = getResultType(operation, unsafeFieldType);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, UNSAFE_INTERNAL_NAME, unsafeMethodName,
+                Type.getMethodDescriptor(unsafeResultType, parameterTypes), false);
+        if (!unsafeResultType.equals(resultType) && resultType.getSort() != Type.VOID) {
+            mv.visitTypeInsn(Opcodes.CHECKCAST, resultType.getInternalName());
+        }
+    }
+
+    @Nonnull
+    private static Type[] getValueTypes(@Nonnull String operation, @Nonnull Type fieldType) {
+        switch (operation) {
+            case OPERATION_GET_OPAQUE:
+            case OPERATION_GET_ACQUIRE:
+            case OPERATION_GET_VOLATILE:
+                return new Type[0];
+            case OPERATION_SET_OPAQUE:
+            case OPERATION_SET_RELEASE:
+            case OPERATION_SET_VOLATILE:
+            case OPERATION_GET_AND_ADD:
+                return new Type[] { fieldType };
+            case OPERATION_COMPARE_AND_SET:
+                return new Type[] { fieldType, fieldType };
+            default:
+                throw new IllegalArgumentException(operation);
+        }
+    }
+
+    @Nonnull
+    private static Type getResultType(@Nonnull String operation, @Nonnull Type fieldType) {
+        switch (operation) {
+            case OPERATION_GET_OPAQUE:
+            case OPERATION_GET_ACQUIRE:
+            case OPERATION_GET_VOLATILE:
+            case OPERATION_GET_AND_ADD:
+                return fieldType;
+            case OPERATION_SET_OPAQUE:
+            case OPERATION_SET_RELEASE:
+            case OPERATION_SET_VOLATILE:
+                return Type.VOID_TYPE;
+            case OPERATION_COMPARE_AND_SET:
+                return Type.BOOLEAN_TYPE;
+            default:
+                throw new IllegalArgumentException(operation);
+        }
+    }
+
+    private static boolean isUnsafeAtomicType(@Nonnull Type type) {
+        switch (type.getSort()) {
+            case Type.INT:
+            case Type.LONG:
+            case Type.OBJECT:
+            case Type.ARRAY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Nonnull
+    private static String getUnsafeTypeName(@Nonnull Type type) {
+        switch (type.getSort()) {
+            case Type.INT:
+                return "Int";
+            case Type.LONG:
+                return "Long";
+            case Type.OBJECT:
+            case Type.ARRAY:
+                return "Object";
+            default:
+                throw new IllegalArgumentException(type.toString());
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Generates accessor classes for a list of hidden API signatures, without compiling any source.
+ * <p>
+ * Each line of the list is a dex signature like
+ * {@code Landroid/app/ActivityThread;->currentActivityThread()Landroid/app/ActivityThread;} or
+ * {@code Landroid/app/ActivityThread;->mH:Landroid/app/ActivityThread$H;}, optionally followed by
+ * the flags in the hiddenapi flags format, which are ignored. Signatures do not tell whether a
+ * member is static or declared in an interface, so they can be prefixed with {@code static} and
+ * {@code interface}. Anything after a {@code #} is a comment.
+ * <p>
+ * A class like {@code hiddenapi.android.app.ActivityThread} is generated for each owner, with a
+ * static method for each member annotated the same way as a stub written by hand, which is then
+ * transformed by {@link BytecoderClassTranformer}. Types that are not available at compile time are
+ * declared as {@code Object} with {@code @TypeName}.
+ */
+class BytecoderHiddenApiAccessors {
+
+    private static final String LIBRARY_DESCRIPTOR_PREFIX =
+            "Lme/zhanghai/android/bytecoder/library/";
+
+    private static final String CLASS_FILE_EXTENSION = ".class";
+
+    private BytecoderHiddenApiAccessors() {}
+
+    @Nonnull
+    public static List<Signature> parse(@Nonnull List<String> lines) {
+        Set<String> signatureLines = new LinkedHashSet<>();
+        for (String line : lines) {
+            int commentIndex = line.indexOf('#');
+            if (commentIndex != -1) {
+                line = line.substring(0, commentIndex);
+            }
+            int flagsIndex = line.indexOf(',');
+            if (flagsIndex != -1) {
+                line = line.substring(0, flagsIndex);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            signatureLines.add(line);
+        }
+        List<Signature> signatures = new ArrayList<>();
+        for (String signatureLine : signatureLines) {
+            signatures.add(parseSignature(signatureLine));
+        }
+        return signatures;
+    }
+
+    @Nonnull
+    private static Signature parseSignature(@Nonnull String line) {
+        String[] tokens = line.split("\\s+");
+        boolean isStatic = false;
+        boolean isInterface = false;
+        for (int i = 0; i < tokens.length - 1; ++i) {
+            switch (tokens[i]) {
+                case "static":
+                    isStatic = true;
+                    break;
+                case "interface":
+                    isInterface = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown modifier in hidden API signature: "
+                            + line);
+            }
+        }
+        String signature = tokens[tokens.length - 1];
+        int arrowIndex = signature.indexOf(";->");
+        if (!signature.startsWith("L") || arrowIndex == -1) {
+            throw new IllegalArgumentException("Invalid hidden API signature: " + line);
+        }
+        String owner = signature.substring(1, arrowIndex);
+        String member = signature.substring(arrowIndex + 3);
+        int parenthesisIndex = member.indexOf('(');
+        int colonIndex = member.indexOf(':');
+        boolean isField = parenthesisIndex == -1;
+        int nameEndIndex = isField ? colonIndex : parenthesisIndex;
+        if (owner.isEmpty() || nameEndIndex <= 0) {
+            throw new IllegalArgumentException("Invalid hidden API signature: " + line);
+        }
+        Signature result = new Signature();
+        result.line = line;
+        result.owner = owner;
+        result.name = member.substring(0, nameEndIndex);
+        result.descriptor = member.substring(isField ? nameEndIndex + 1 : nameEndIndex);
+        result.isField = isField;
+        result.isStatic = isStatic;
+        result.isInterface = isInterface;
+        try {
+            if (isField) {
+                Type.getType(result.descriptor).getSize();
+            } else {
+                Type.getArgumentTypes(result.descriptor);
+                Type.getReturnType(result.descriptor);
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid descriptor in hidden API signature: "
+                    + line, e);
+        }
+        return result;
+    }
+
+    /**
+     * Generate the accessor classes for the signatures.
+     *
+     * @param packageName the name of the package to generate the accessor classes in
+     * @param availableClassNames the internal names of the classes available at compile time, in
+     *                            addition to the ones in {@code java}
+     * @return the class files, by their entry names in a jar
+     */
+    @Nonnull
+    public static SortedMap<String, byte[]> generate(@Nonnull List<Signature> signatures,
+                                                     @Nonnull String packageName,
+                                                     @Nonnull Set<String> availableClassNames) {
+        Map<String, List<Signature>> signaturesByOwner = new LinkedHashMap<>();
+        for (Signature signature : signatures) {
+            signaturesByOwner.computeIfAbsent(signature.owner, owner -> new ArrayList<>()).add(
+                    signature);
+        }
+        String packagePrefix = packageName.isEmpty() ? "" : packageName.replace('.', '/') + '/';
+        SortedMap<String, byte[]> entries = new TreeMap<>();
+        for (Map.Entry<String, List<Signature>> entry : signaturesByOwner.entrySet()) {
+            String name = packagePrefix + entry.getKey().replace('$', '_');
+            byte[] bytes = generateClass(name, entry.getValue(), availableClassNames);
+            Map<String, byte[]> generatedClasses = new LinkedHashMap<>();
+            entries.put(name + CLASS_FILE_EXTENSION, BytecoderClassTranformer.transform(bytes,
+                    false, generatedClasses));
+            for (Map.Entry<String, byte[]> generatedClass : generatedClasses.entrySet()) {
+                entries.put(generatedClass.getKey() + CLASS_FILE_EXTENSION,
+                        generatedClass.getValue());
+            }
+        }
+        return entries;
+    }
+
+    @Nonnull
+    private static byte[] generateClass(@Nonnull String name, @Nonnull List<Signature> signatures,
+                                        @Nonnull Set<String> availableClassNames) {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, name,
+                null, "java/lang/Object", null);
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PRIVATE, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(1, 1);
+        mv.visitEnd();
+        Set<String> methods = new HashSet<>();
+        for (Signature signature : signatures) {
+            Type ownerType = Type.getObjectType(signature.owner);
+            if (signature.isField) {
+                Type fieldType = Type.getType(signature.descriptor);
+                String capitalizedName = Character.toUpperCase(signature.name.charAt(0))
+                        + signature.name.substring(1);
+                Type[] getterParameterTypes = signature.isStatic ? new Type[0]
+                        : new Type[] { ownerType };
+                visitStub(writer, methods, signature, "get" + capitalizedName,
+                        signature.isStatic ? "GetStatic" : "GetField", "fieldName",
+                        getterParameterTypes, fieldType, availableClassNames);
+                Type[] setterParameterTypes = signature.isStatic ? new Type[] { fieldType }
+                        : new Type[] { ownerType, fieldType };
+                visitStub(writer, methods, signature, "set" + capitalizedName,
+                        signature.isStatic ? "PutStatic" : "PutField", "fieldName",
+                        setterParameterTypes, Type.VOID_TYPE, availableClassNames);
+            } else if (signature.name.equals("<init>")) {
+                visitStub(writer, methods, signature, "newInstance", "InvokeConstructor", null,
+                        Type.getArgumentTypes(signature.descriptor), ownerType,
+                        availableClassNames);
+            } else if (!signature.name.equals("<clinit>")) {
+                Type[] argumentTypes = Type.getArgumentTypes(signature.descriptor);
+                Type[] parameterTypes;
+                String annotation;
+                if (signature.isStatic) {
+                    parameterTypes = argumentTypes;
+                    annotation = "InvokeStatic";
+                } else {
+                    parameterTypes = new Type[argumentTypes.length + 1];
+                    parameterTypes[0] = ownerType;
+                    System.arraycopy(argumentTypes, 0, parameterTypes, 1, argumentTypes.length);
+                    annotation = signature.isInterface ? "InvokeInterface" : "InvokeVirtual";
+                }
+                visitStub(writer, methods, signature, signature.name, annotation, "methodName",
+                        parameterTypes, Type.getReturnType(signature.descriptor),
+                        availableClassNames);
+            }
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * Visit a stub method annotated for accessing the member of a signature.
+     *
+     * @param memberNameKey the name of the annotation element for the name of the member, or
+     *                      {@code null} for a constructor
+     */
+    private static void visitStub(@Nonnull ClassWriter writer, @Nonnull Set<String> methods,
+                                  @Nonnull Signature signature, @Nonnull String name,
+                                  @Nonnull String annotation, String memberNameKey,
+                                  @Nonnull Type[] parameterTypes, @Nonnull Type returnType,
+                                  @Nonnull Set<String> availableClassNames) {
+        Type[] declaredParameterTypes = new Type[parameterTypes.length];
+        int parameterSize = 0;
+        for (int i = 0; i < parameterTypes.length; ++i) {
+            declaredParameterTypes[i] = getDeclaredType(parameterTypes[i], availableClassNames);
+            parameterSize += parameterTypes[i].getSize();
+        }
+        Type declaredReturnType = getDeclaredType(returnType, availableClassNames);
+        String descriptor = Type.getMethodDescriptor(declaredReturnType, declaredParameterTypes);
+        if (!methods.add(name + descriptor)) {
+            throw new IllegalArgumentException("Hidden API signature has the same accessor method "
+                    + name + descriptor + " as another one: " + signature.line);
+        }
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, name,
+                descriptor, null, new String[] { "java/lang/LinkageError" });
+        AnnotationVisitor av = mv.visitAnnotation(getLibraryDescriptor(annotation), false);
+        av.visit("className", Type.getObjectType(signature.owner).getClassName());
+        if (memberNameKey != null) {
+            av.visit(memberNameKey, signature.name);
+        }
+        av.visitEnd();
+        if (!declaredReturnType.equals(returnType)) {
+            visitTypeName(mv.visitAnnotation(getLibraryDescriptor("TypeName"), false),
+                    returnType);
+        }
+        for (int i = 0; i < parameterTypes.length; ++i) {
+            if (!declaredParameterTypes[i].equals(parameterTypes[i])) {
+                visitTypeName(mv.visitParameterAnnotation(i, getLibraryDescriptor("TypeName"),
+                        false), parameterTypes[i]);
+            }
+        }
+        // The body is replaced when the stub is transformed.
+        mv.visitCode();
+        mv.visitInsn(Opcodes.ACONST_NULL);
+        mv.visitInsn(Opcodes.ATHROW);
+        mv.visitMaxs(1, parameterSize);
+        mv.visitEnd();
+    }
+
+    /**
+     * Get the type to declare for a type, which is {@code Object} if it is not available at compile
+     * time.
+     */
+    @Nonnull
+    private static Type getDeclaredType(@Nonnull Type type,
+                                        @Nonnull Set<String> availableClassNames) {
+        Type elementType = type.getSort() == Type.ARRAY ? type.getElementType() : type;
+        if (elementType.getSort() != Type.OBJECT) {
+            return type;
+        }
+        String internalName = elementType.getInternalName();
+        if (internalName.startsWith("java/") || availableClassNames.contains(internalName)) {
+            return type;
+        }
+        return Type.getObjectType("java/lang/Object");
+    }
+
+    private static void visitTypeName(@Nonnull AnnotationVisitor av, @Nonnull Type type) {
+        // The same format as Class.getName().
+        av.visit("value", type.getSort() == Type.ARRAY ? type.getDescriptor().replace('/', '.')
+                : type.getClassName());
+        av.visitEnd();
+    }
+
+    @Nonnull
+    private static String getLibraryDescriptor(@Nonnull String simpleName) {
+        return LIBRARY_DESCRIPTOR_PREFIX + simpleName + ';';
+    }
+
+    public static class Signature {
+        public String line;
+        public String owner;
+        public String name;
+        public String descriptor;
+        public boolean isField;
+        public boolean isStatic;
+        public boolean isInterface;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Generates a jar of accessor classes for a list of hidden API signatures, which is added to the
+ * dependencies of the project instead of stubs compiled from source.
+ * <p>
+ * Jars are cached in the Gradle user home by the SDK version and the hash of the list, so that
+ * they are shared across projects and builds.
+ *
+ * @see BytecoderHiddenApiAccessors
+ */
+@CacheableTask
+public class BytecoderHiddenApiTask extends DefaultTask {
+
+    private static final String CLASS_FILE_EXTENSION = ".class";
+
+    private File signatureFile;
+    private String accessorPackage;
+    private String sdkVersion;
+    private FileCollection bootClasspath;
+    private File cacheDirectory;
+    private File jarFile;
+
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    public File getSignatureFile() {
+        return signatureFile;
+    }
+
+    public void setSignatureFile(File signatureFile) {
+        this.signatureFile = signatureFile;
+    }
+
+    @Input
+    public String getAccessorPackage() {
+        return accessorPackage;
+    }
+
+    public void setAccessorPackage(String accessorPackage) {
+        this.accessorPackage = accessorPackage;
+    }
+
+    /**
+     * The version of the SDK whose classes are available at compile time, e.g.
+     * {@code android-28}.
+     */
+    @Input
+    public String getSdkVersion() {
+        return sdkVersion;
+    }
+
+    public void setSdkVersion(String sdkVersion) {
+        this.sdkVersion = sdkVersion;
+    }
+
+    @Classpath
+    public FileCollection getBootClasspath() {
+        return bootClasspath;
+    }
+
+    public void setBootClasspath(FileCollection bootClasspath) {
+        this.bootClasspath = bootClasspath;
+    }
+
+    @Input
+    public String getPluginVersion() {
+        return BytecoderTransform.getPluginVersion();
+    }
+
+    @Internal
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    public void setCacheDirectory(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    @OutputFile
+    public File getJarFile() {
+        return jarFile;
+    }
+
+    public void setJarFile(File jarFile) {
+        this.jarFile = jarFile;
+    }
+
+    @TaskAction
+    public void generate() throws IOException {
+
+        byte[] signatureBytes = Files.readAllBytes(signatureFile.toPath());
+        Path cachedJarFile = cacheDirectory.toPath()
+                .resolve(sdkVersion.replaceAll("[^A-Za-z0-9._-]", "_"))
+                .resolve(getHash(signatureBytes) + ".jar");
+        if (!Files.exists(cachedJarFile)) {
+            List<BytecoderHiddenApiAccessors.Signature> signatures =
+                    BytecoderHiddenApiAccessors.parse(Files.readAllLines(signatureFile.toPath(),
+                            StandardCharsets.UTF_8));
+            Files.createDirectories(cachedJarFile.getParent());
+            Path temporaryFile = Files.createTempFile(cachedJarFile.getParent(),
+                    cachedJarFile.getFileName().toString(), ".tmp");
+            BytecoderJars.write(temporaryFile, BytecoderHiddenApiAccessors.generate(signatures,
+                    accessorPackage, getAvailableClassNames()));
+            // Other builds may be generating the same jar concurrently.
+            try {
+                Files.move(temporaryFile, cachedJarFile, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.delete(temporaryFile);
+                if (!Files.exists(cachedJarFile)) {
+                    throw e;
+                }
+            }
+        }
+
+        Files.createDirectories(jarFile.getParentFile().toPath());
+        new BytecoderWriteStats().link(jarFile.toPath(), cachedJarFile);
+    }
+
+    private String getHash(byte[] signatureBytes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(getPluginVersion().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(accessorPackage.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(signatureBytes);
+        return BytecoderSharedOutputs.toHexString(digest.digest());
+    }
+
+    private Set<String> getAvailableClassNames() throws IOException {
+        Set<String> classNames = new HashSet<>();
+        for (File file : bootClasspath) {
+            if (!file.isFile()) {
+                continue;
+            }
+            try (ZipFile zipFile = new ZipFile(file)) {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    String name = entries.nextElement().getName();
+                    if (name.endsWith(CLASS_FILE_EXTENSION)) {
+                        classNames.add(name.substring(0, name.length()
+                                - CLASS_FILE_EXTENSION.length()));
+                    }
+                }
+            }
+        }
+        return classNames;
+    }
+}
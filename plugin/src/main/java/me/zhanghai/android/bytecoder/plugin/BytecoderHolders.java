@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * Holder classes are generated next to the class declaring the methods that use them, with names
+ * like {@code Foo$$BytecoderCandidates$bar}.
+ */
+class BytecoderHolders {
+
+    private static final String CLASS_NAME_INFIX = "$$Bytecoder";
+
+    private static final String CLASS_FILE_EXTENSION = ".class";
+
+    private BytecoderHolders() {}
+
+    @Nonnull
+    public static String getClassName(@Nonnull String className, @Nonnull String kind,
+                                      @Nonnull String name) {
+        return className + CLASS_NAME_INFIX + kind + '$' + name;
+    }
+
+    @Nonnull
+    public static String getFileName(@Nonnull String internalName) {
+        return internalName.substring(internalName.lastIndexOf('/') + 1) + CLASS_FILE_EXTENSION;
+    }
+
+    /**
+     * Delete the generated class files for a class file, except for the ones with the excluded
+     * file names.
+     */
+    public static void deleteClassFiles(@Nonnull Path classFile,
+                                        @Nonnull Set<String> excludedFileNames) throws IOException {
+        Path directory = classFile.getParent();
+        if (directory == null || !Files.isDirectory(directory)) {
+            return;
+        }
+        String fileName = classFile.getFileName().toString();
+        if (!fileName.endsWith(CLASS_FILE_EXTENSION)) {
+            return;
+        }
+        String glob = fileName.substring(0, fileName.length() - CLASS_FILE_EXTENSION.length())
+                + CLASS_NAME_INFIX + "*" + CLASS_FILE_EXTENSION;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                escapeGlob(glob))) {
+            for (Path file : files) {
+                if (!excludedFileNames.contains(file.getFileName().toString())) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the name of the class file that a generated class file is for, or the name itself if it
+     * is not a generated class file.
+     */
+    @Nonnull
+    public static String getHostFileName(@Nonnull String fileName) {
+        int index = fileName.indexOf(CLASS_NAME_INFIX);
+        if (index == -1 || !fileName.endsWith(CLASS_FILE_EXTENSION)) {
+            return fileName;
+        }
+        return fileName.substring(0, index) + CLASS_FILE_EXTENSION;
+    }
+
+    @Nonnull
+    private static String escapeGlob(@Nonnull String glob) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < glob.length(); ++i) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '\\':
+                case '?':
+                case '[':
+                case ']':
+                case '{':
+                case '}':
+                    builder.append('\\');
+                    break;
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    @Nonnull
+    public static ClassWriter newClassWriter(int version, @Nonnull String name) {
+        return newClassWriter(version, name, "java/lang/Object", null);
+    }
+
+    @Nonnull
+    public static ClassWriter newClassWriter(int version, @Nonnull String name,
+                                             @Nonnull String superName, String[] interfaces) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+            // Generated classes only merge types from java.lang, so there is no need to load any
+            // class here.
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return "java/lang/Object";
+            }
+        };
+        writer.visit(version, Opcodes.ACC_FINAL | Opcodes.ACC_SUPER | Opcodes.ACC_SYNTHETIC, name,
+                null, superName, interfaces);
+        return writer;
+    }
+
+    /**
+     * Visit a method that returns whether the target class, and the target method or field if
+     * any, can be resolved at runtime.
+     * <p>
+     * The probe uses reflection and catches any {@link Throwable}, so it should be called only once
+     * for its result to be cached.
+     *
+     * @param opcode the opcode for accessing the target, or {@code 0} for probing only the class
+     * @param parameterTypes the parameter types of the target method, excluding the receiver
+     * @param returnType the return type of the target method, or the type of the target field
+     */
+    public static void visitProbeMethod(@Nonnull ClassVisitor cv, @Nonnull String holderName,
+                                        @Nonnull String name, int opcode, @Nonnull Type classType,
+                                        String memberName, Type[] parameterTypes,
+                                        Type returnType) {
+        MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC
+                | Opcodes.ACC_SYNTHETIC, name, "()Z", null, null);
+        mv.visitCode();
+        Label tryStart = new Label();
+        Label tryEnd = new Label();
+        Label handler = new Label();
+        Label unavailable = new Label();
+        Label lookupStart = new Label();
+        Label lookupEnd = new Label();
+        Label lookupHandler = new Label();
+        boolean isField = opcode == Opcodes.GETFIELD || opcode == Opcodes.GETSTATIC
+                || opcode == Opcodes.PUTFIELD || opcode == Opcodes.PUTSTATIC;
+        boolean isMethod = opcode == Opcodes.INVOKEINTERFACE || opcode == Opcodes.INVOKESTATIC
+                || opcode == Opcodes.INVOKEVIRTUAL;
+        // The handler for the lookup in each class must come before the one catching everything.
+        if (isField || isMethod) {
+            mv.visitTryCatchBlock(lookupStart, lookupEnd, lookupHandler, isField ?
+                    "java/lang/NoSuchFieldException" : "java/lang/NoSuchMethodException");
+        }
+        mv.visitTryCatchBlock(tryStart, tryEnd, handler, "java/lang/Throwable");
+        mv.visitLabel(tryStart);
+        visitPushClass(mv, holderName, classType);
+        switch (opcode) {
+            case 0:
+                mv.visitInsn(Opcodes.POP);
+                break;
+            case Opcodes.GETFIELD:
+            case Opcodes.GETSTATIC:
+            case Opcodes.PUTFIELD:
+            case Opcodes.PUTSTATIC: {
+                visitGetMember(mv, holderName, classType, memberName, null, lookupStart,
+                        lookupEnd, lookupHandler);
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/reflect/Field", "getType",
+                        "()Ljava/lang/Class;", false);
+                visitPushClass(mv, holderName, returnType);
+                mv.visitJumpInsn(Opcodes.IF_ACMPNE, unavailable);
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/reflect/Field",
+                        "getModifiers", "()I", false);
+                boolean isStatic = opcode == Opcodes.GETSTATIC || opcode == Opcodes.PUTSTATIC;
+                visitCheckStatic(mv, isStatic, unavailable);
+                break;
+            }
+            case Opcodes.INVOKESPECIAL:
+                visitPushClassArray(mv, holderName, parameterTypes);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Class",
+                        "getDeclaredConstructor",
+                        "([Ljava/lang/Class;)Ljava/lang/reflect/Constructor;", false);
+                mv.visitInsn(Opcodes.POP);
+                break;
+            case Opcodes.INVOKEINTERFACE:
+            case Opcodes.INVOKESTATIC:
+            case Opcodes.INVOKEVIRTUAL: {
+                visitGetMember(mv, holderName, classType, memberName, parameterTypes,
+                        lookupStart, lookupEnd, lookupHandler);
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/reflect/Method",
+                        "getReturnType", "()Ljava/lang/Class;", false);
+                visitPushClass(mv, holderName, returnType);
+                mv.visitJumpInsn(Opcodes.IF_ACMPNE, unavailable);
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/reflect/Method",
+                        "getModifiers", "()I", false);
+                visitCheckStatic(mv, opcode == Opcodes.INVOKESTATIC, unavailable);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException();
+        }
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitLabel(tryEnd);
+        mv.visitLabel(unavailable);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitLabel(handler);
+        mv.visitInsn(Opcodes.POP);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitInsn(Opcodes.IRETURN);
+        // Frames and maxs are computed by the class writer.
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Visit the instructions to store the field, or the method if parameter types are given, that
+     * is declared in the class on the stack or its nearest superclass into local variable
+     * {@code 0}, and fall back to the public members from the superinterfaces.
+     * <p>
+     * Unlike {@link Class#getField(String)} and {@link Class#getMethod(String, Class[])}, this
+     * finds the non-public members which can also be accessed by a stub.
+     * <p>
+     * Local variable {@code 1} is used for the class being looked up in. The caller must visit the
+     * try-catch block for the lookup labels, catching {@code NoSuchFieldException} or
+     * {@code NoSuchMethodException}, before any enclosing one.
+     */
+    public static void visitGetMember(@Nonnull MethodVisitor mv, @Nonnull String holderName,
+                                       @Nonnull Type classType, @Nonnull String memberName,
+                                       Type[] parameterTypes, @Nonnull Label lookupStart,
+                                       @Nonnull Label lookupEnd, @Nonnull Label lookupHandler) {
+        boolean isField = parameterTypes == null;
+        String getDeclaredName = isField ? "getDeclaredField" : "getDeclaredMethod";
+        String getName = isField ? "getField" : "getMethod";
+        String getDescriptor = isField ? "(Ljava/lang/String;)Ljava/lang/reflect/Field;"
+                : "(Ljava/lang/String;[Ljava/lang/Class;)Ljava/lang/reflect/Method;";
+        Label found = new Label();
+        mv.visitVarInsn(Opcodes.ASTORE, 1);
+        mv.visitLabel(lookupStart);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitLdcInsn(memberName);
+        if (!isField) {
+            visitPushClassArray(mv, holderName, parameterTypes);
+        }
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Class", getDeclaredName,
+                getDescriptor, false);
+        mv.visitVarInsn(Opcodes.ASTORE, 0);
+        mv.visitLabel(lookupEnd);
+        mv.visitJumpInsn(Opcodes.GOTO, found);
+        mv.visitLabel(lookupHandler);
+        mv.visitInsn(Opcodes.POP);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Class", "getSuperclass",
+                "()Ljava/lang/Class;", false);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitVarInsn(Opcodes.ASTORE, 1);
+        mv.visitJumpInsn(Opcodes.IFNONNULL, lookupStart);
+        visitPushClass(mv, holderName, classType);
+        mv.visitLdcInsn(memberName);
+        if (!isField) {
+            visitPushClassArray(mv, holderName, parameterTypes);
+        }
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Class", getName, getDescriptor,
+                false);
+        mv.visitVarInsn(Opcodes.ASTORE, 0);
+        mv.visitLabel(found);
+    }
+
+    private static void visitCheckStatic(@Nonnull MethodVisitor mv, boolean isStatic,
+                                         @Nonnull Label unavailable) {
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/reflect/Modifier", "isStatic", "(I)Z",
+                false);
+        mv.visitJumpInsn(isStatic ? Opcodes.IFEQ : Opcodes.IFNE, unavailable);
+    }
+
+    private static void visitPushClassArray(@Nonnull MethodVisitor mv, @Nonnull String holderName,
+                                            @Nonnull Type[] types) {
+        visitPushInt(mv, types.length);
+        mv.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/Class");
+        for (int i = 0; i < types.length; ++i) {
+            mv.visitInsn(Opcodes.DUP);
+            visitPushInt(mv, i);
+            visitPushClass(mv, holderName, types[i]);
+            mv.visitInsn(Opcodes.AASTORE);
+        }
+    }
+
+    /**
+     * Push a class object without a class constant, so that a missing class can be caught instead
+     * of failing the verification of the holder class.
+     */
+    public static void visitPushClass(@Nonnull MethodVisitor mv, @Nonnull String holderName,
+                                      @Nonnull Type type) {
+        String primitiveClassName;
+        switch (type.getSort()) {
+            case Type.VOID:
+                primitiveClassName = "java/lang/Void";
+                break;
+            case Type.BOOLEAN:
+                primitiveClassName = "java/lang/Boolean";
+                break;
+            case Type.BYTE:
+                primitiveClassName = "java/lang/Byte";
+                break;
+            case Type.CHAR:
+                primitiveClassName = "java/lang/Character";
+                break;
+            case Type.SHORT:
+                primitiveClassName = "java/lang/Short";
+                break;
+            case Type.INT:
+                primitiveClassName = "java/lang/Integer";
+                break;
+            case Type.FLOAT:
+                primitiveClassName = "java/lang/Float";
+                break;
+            case Type.LONG:
+                primitiveClassName = "java/lang/Long";
+                break;
+            case Type.DOUBLE:
+                primitiveClassName = "java/lang/Double";
+                break;
+            default:
+                primitiveClassName = null;
+        }
+        if (primitiveClassName != null) {
+            mv.visitFieldInsn(Opcodes.GETSTATIC, primitiveClassName, "TYPE", "Ljava/lang/Class;");
+            return;
+        }
+        String className = type.getSort() == Type.ARRAY ? type.getDescriptor().replace('/', '.')
+                : type.getClassName();
+        mv.visitLdcInsn(className);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitLdcInsn(Type.getObjectType(holderName));
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Class", "getClassLoader",
+                "()Ljava/lang/ClassLoader;", false);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Class", "forName",
+                "(Ljava/lang/String;ZLjava/lang/ClassLoader;)Ljava/lang/Class;", false);
+    }
+
+    public static void visitPushInt(@Nonnull MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Output jars are uncompressed and have their entries sorted by name with a fixed time, so that
+ * they are reproducible and can be updated by merging the previous entries with the changed ones
+ * in a single sequential pass.
+ */
+class BytecoderJars {
+
+    // The same as Gradle uses for reproducible archives.
+    private static final long ENTRY_TIME = new GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0,
+            0).getTimeInMillis();
+
+    private BytecoderJars() {}
+
+    /**
+     * Update a jar with the files in a staging directory.
+     *
+     * @param removedFileNames the entry names of the input files that were changed or removed,
+     *                         whose previous entries and generated classes should be dropped
+     * @param removedDirectoryNames the entry name prefixes, ending with {@code /}, of the input
+     *                              directories that were removed
+     * @param stats the stats to record whether the jar was written
+     */
+    public static void update(@Nonnull Path jarFile, @Nonnull Path stagingDirectory,
+                              @Nonnull Set<String> removedFileNames,
+                              @Nonnull Set<String> removedDirectoryNames,
+                              @Nonnull BytecoderWriteStats stats) throws IOException {
+
+        TreeMap<String, Path> stagedFiles = new TreeMap<>();
+        try (Stream<Path> files = Files.walk(stagingDirectory)) {
+            Iterator<Path> iterator = files.iterator();
+            while (iterator.hasNext()) {
+                Path file = iterator.next();
+                if (Files.isRegularFile(file)) {
+                    stagedFiles.put(getEntryName(stagingDirectory.relativize(file)), file);
+                }
+            }
+        }
+
+        Path temporaryFile = jarFile.resolveSibling(jarFile.getFileName() + ".tmp");
+        Files.createDirectories(jarFile.getParent());
+        try (ZipOutputStream outputStream = new ZipOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temporaryFile)))) {
+            outputStream.setMethod(ZipOutputStream.STORED);
+            Iterator<Map.Entry<String, Path>> stagedIterator = stagedFiles.entrySet().iterator();
+            Map.Entry<String, Path> stagedEntry = stagedIterator.hasNext() ? stagedIterator.next()
+                    : null;
+            if (Files.exists(jarFile)) {
+                try (ZipInputStream inputStream = new ZipInputStream(new BufferedInputStream(
+                        Files.newInputStream(jarFile)))) {
+                    ZipEntry entry;
+                    while ((entry = inputStream.getNextEntry()) != null) {
+                        String name = entry.getName();
+                        if (isRemoved(name, removedFileNames, removedDirectoryNames)
+                                || stagedFiles.containsKey(name)) {
+                            continue;
+                        }
+                        while (stagedEntry != null && stagedEntry.getKey().compareTo(name) < 0) {
+                            writeEntry(outputStream, stagedEntry.getKey(), Files.readAllBytes(
+                                    stagedEntry.getValue()));
+                            stagedEntry = stagedIterator.hasNext() ? stagedIterator.next() : null;
+                        }
+                        writeEntry(outputStream, name, readAllBytes(inputStream));
+                    }
+                }
+            }
+            while (stagedEntry != null) {
+                writeEntry(outputStream, stagedEntry.getKey(), Files.readAllBytes(
+                        stagedEntry.getValue()));
+                stagedEntry = stagedIterator.hasNext() ? stagedIterator.next() : null;
+            }
+        }
+        stats.replace(jarFile, temporaryFile);
+    }
+
+    /**
+     * Write a jar with the entries in a sorted map.
+     */
+    public static void write(@Nonnull Path jarFile, @Nonnull SortedMap<String, byte[]> entries)
+            throws IOException {
+        Files.createDirectories(jarFile.getParent());
+        try (ZipOutputStream outputStream = new ZipOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(jarFile)))) {
+            outputStream.setMethod(ZipOutputStream.STORED);
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                writeEntry(outputStream, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Nonnull
+    public static String getEntryName(@Nonnull Path relativePath) {
+        return relativePath.toString().replace(relativePath.getFileSystem().getSeparator(), "/");
+    }
+
+    private static boolean isRemoved(@Nonnull String name, @Nonnull Set<String> removedFileNames,
+                                     @Nonnull Set<String> removedDirectoryNames) {
+        if (removedFileNames.contains(BytecoderHolders.getHostFileName(name))) {
+            return true;
+        }
+        for (String directoryName : removedDirectoryNames) {
+            if (name.startsWith(directoryName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeEntry(@Nonnull ZipOutputStream outputStream, @Nonnull String name,
+                                   @Nonnull byte[] bytes) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(ENTRY_TIME);
+        entry.setSize(bytes.length);
+        entry.setCompressedSize(bytes.length);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        entry.setCrc(crc.getValue());
+        outputStream.putNextEntry(entry);
+        outputStream.write(bytes);
+        outputStream.closeEntry();
+    }
+
+    @Nonnull
+    public static byte[] readAllBytes(@Nonnull InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, length);
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.SkipWhenEmpty;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.incremental.IncrementalTaskInputs;
+import org.gradle.workers.WorkerExecutor;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Transforms the classes compiled for a source set in a project with the Java plugin.
+ * <p>
+ * The compile task outputs to an intermediate directory instead, and this task outputs to the
+ * classes directory of the source set, so that the tasks consuming it stay unaware of the
+ * transform.
+ */
+@CacheableTask
+public class BytecoderJavaTask extends DefaultTask {
+
+    @Nonnull
+    private final WorkerExecutor workerExecutor;
+
+    private File classesDirectory;
+    private boolean transformEnabled = true;
+    private boolean stubsOnly;
+    private boolean isolateStubs;
+    private boolean verify;
+    private boolean traceStubs;
+    private List<String> classVisitorFactoryClassNames = new ArrayList<>();
+    private FileCollection classVisitorFactoryClasspath;
+    private File outputDirectory;
+
+    @Inject
+    public BytecoderJavaTask(@Nonnull WorkerExecutor workerExecutor) {
+        this.workerExecutor = workerExecutor;
+    }
+
+    @InputFiles
+    @SkipWhenEmpty
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public File getClassesDirectory() {
+        return classesDirectory;
+    }
+
+    public void setClassesDirectory(File classesDirectory) {
+        this.classesDirectory = classesDirectory;
+    }
+
+    /**
+     * @see BytecoderVariantExtension#isEnabled()
+     */
+    @Input
+    public boolean isTransformEnabled() {
+        return transformEnabled;
+    }
+
+    public void setTransformEnabled(boolean transformEnabled) {
+        this.transformEnabled = transformEnabled;
+    }
+
+    /**
+     * @see BytecoderVariantExtension#isStubsOnly()
+     */
+    @Input
+    public boolean isStubsOnly() {
+        return stubsOnly;
+    }
+
+    public void setStubsOnly(boolean stubsOnly) {
+        this.stubsOnly = stubsOnly;
+    }
+
+    @Input
+    public boolean isIsolateStubs() {
+        return isolateStubs;
+    }
+
+    public void setIsolateStubs(boolean isolateStubs) {
+        this.isolateStubs = isolateStubs;
+    }
+
+    @Input
+    public boolean isVerify() {
+        return verify;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * @see BytecoderExtension#isTraceStubs()
+     */
+    @Input
+    public boolean isTraceStubs() {
+        return traceStubs;
+    }
+
+    public void setTraceStubs(boolean traceStubs) {
+        this.traceStubs = traceStubs;
+    }
+
+    /**
+     * @see BytecoderClassVisitorFactory
+     */
+    @Input
+    public List<String> getClassVisitorFactoryClassNames() {
+        return classVisitorFactoryClassNames;
+    }
+
+    public void setClassVisitorFactoryClassNames(List<String> classVisitorFactoryClassNames) {
+        this.classVisitorFactoryClassNames = classVisitorFactoryClassNames;
+    }
+
+    @Classpath
+    public FileCollection getClassVisitorFactoryClasspath() {
+        return classVisitorFactoryClasspath;
+    }
+
+    public void setClassVisitorFactoryClasspath(FileCollection classVisitorFactoryClasspath) {
+        this.classVisitorFactoryClasspath = classVisitorFactoryClasspath;
+    }
+
+    @Input
+    public String getPluginVersion() {
+        return BytecoderTransform.getPluginVersion();
+    }
+
+    @OutputDirectory
+    public File getOutputDirectory() {
+        return outputDirectory;
+    }
+
+    public void setOutputDirectory(File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    @TaskAction
+    public void transform(IncrementalTaskInputs inputs) throws IOException {
+
+        Path inputDirectory = classesDirectory.toPath();
+        Path outputDirectory = this.outputDirectory.toPath();
+        Files.createDirectories(outputDirectory);
+
+        // Classes of source sets run on the JVM.
+        String tracer = traceStubs ? BytecoderTracing.TRACER_JFR : null;
+        BytecoderOptions options = new BytecoderOptions(transformEnabled, stubsOnly, isolateStubs,
+                verify, tracer, classVisitorFactoryClassNames, new ArrayList<>(
+                classVisitorFactoryClasspath.getFiles()), null);
+        BytecoderWorkQueue workQueue = new BytecoderWorkQueue(workerExecutor, options,
+                getTemporaryDir().toPath().resolve("stats"));
+        if (inputs.isIncremental()) {
+            try {
+                inputs.outOfDate(details -> {
+                    Path file = details.getFile().toPath();
+                    try {
+                        Files.createDirectories(outputDirectory.resolve(inputDirectory.relativize(
+                                file)).getParent());
+                        BytecoderTransform.transformPath(file, inputDirectory, outputDirectory,
+                                workQueue);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                inputs.removed(details -> {
+                    try {
+                        BytecoderTransform.deletePath(details.getFile().toPath(), inputDirectory,
+                                outputDirectory);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } else {
+            BytecoderTransform.transformPath(inputDirectory, inputDirectory, outputDirectory,
+                    workQueue);
+        }
+        BytecoderWriteStats stats = workQueue.await();
+        if (!inputs.isIncremental()) {
+            BytecoderTransform.deleteStaleOutputs(outputDirectory, Collections.singletonList(
+                    inputDirectory));
+        }
+        BytecoderTransform.logWriteStats(stats);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options for transforming classes, which are passed to the workers.
+ */
+class BytecoderOptions implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean enabled;
+    private final boolean stubsOnly;
+    private final boolean isolateStubs;
+    private final boolean verify;
+    private final String tracer;
+    private final ArrayList<String> classVisitorFactoryClassNames;
+    private final ArrayList<File> classVisitorFactoryClasspath;
+    private final String classVisitorFactoryClasspathHash;
+    private final File sharedDirectory;
+
+    public BytecoderOptions(boolean enabled, boolean stubsOnly, boolean isolateStubs,
+                            boolean verify, String tracer,
+                            List<String> classVisitorFactoryClassNames,
+                            List<File> classVisitorFactoryClasspath, File sharedDirectory) {
+        this.enabled = enabled;
+        this.stubsOnly = stubsOnly;
+        this.isolateStubs = isolateStubs;
+        this.verify = verify;
+        this.tracer = tracer;
+        this.classVisitorFactoryClassNames = new ArrayList<>(classVisitorFactoryClassNames);
+        this.classVisitorFactoryClasspath = new ArrayList<>(classVisitorFactoryClasspath);
+        // Hashed once here instead of in the workers for every class.
+        classVisitorFactoryClasspathHash = BytecoderPluginVersion.hashClasspath(
+                classVisitorFactoryClasspath);
+        this.sharedDirectory = sharedDirectory;
+    }
+
+    /**
+     * @see BytecoderVariantExtension#isEnabled()
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @see BytecoderVariantExtension#isStubsOnly()
+     */
+    public boolean isStubsOnly() {
+        return stubsOnly;
+    }
+
+    /**
+     * @see BytecoderExtension#isIsolateStubs()
+     */
+    public boolean isIsolateStubs() {
+        return isolateStubs;
+    }
+
+    /**
+     * @see BytecoderExtension#isVerify()
+     */
+    public boolean isVerify() {
+        return verify;
+    }
+
+    /**
+     * The tracer for stubs, or {@code null} if tracing is disabled.
+     *
+     * @see BytecoderExtension#isTraceStubs()
+     * @see BytecoderTracing
+     */
+    public String getTracer() {
+        return tracer;
+    }
+
+    /**
+     * @see BytecoderClassVisitorFactory
+     */
+    public List<String> getClassVisitorFactoryClassNames() {
+        return classVisitorFactoryClassNames;
+    }
+
+    /**
+     * The files that the workers need on their classpath to load the class visitor factories.
+     */
+    public List<File> getClassVisitorFactoryClasspath() {
+        return classVisitorFactoryClasspath;
+    }
+
+    /**
+     * The hash of the content of {@link #getClassVisitorFactoryClasspath()}.
+     */
+    public String getClassVisitorFactoryClasspathHash() {
+        return classVisitorFactoryClasspathHash;
+    }
+
+    /**
+     * @see BytecoderSharedOutputs
+     */
+    public File getSharedDirectory() {
+        return sharedDirectory;
+    }
+}
@@ -14,21 +14,264 @@ import com.android.build.gradle.LibraryExtension;
 import com.android.build.gradle.LibraryPlugin;
 import com.android.build.gradle.TestExtension;
 import com.android.build.gradle.TestPlugin;
+import com.android.build.gradle.api.BaseVariant;
+import com.android.builder.model.SourceProvider;
+import org.gradle.api.DomainObjectSet;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
+import org.gradle.api.Task;
+import org.gradle.api.artifacts.dsl.DependencyHandler;
+import org.gradle.api.attributes.Attribute;
+import org.gradle.api.plugins.JavaPlugin;
+import org.gradle.api.plugins.JavaPluginConvention;
 import org.gradle.api.plugins.PluginContainer;
+import org.gradle.api.tasks.SourceSet;
+import org.gradle.api.tasks.TaskProvider;
+import org.gradle.api.tasks.compile.JavaCompile;
+import org.gradle.workers.WorkerExecutor;
 
 import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class BytecoderPlugin implements Plugin<Project> {
 
+    private static final Attribute<String> ATTRIBUTE_ARTIFACT_TYPE = Attribute.of("artifactType",
+            String.class);
+    // The artifact type of class jars and directories for the Android Gradle plugin.
+    private static final String ARTIFACT_TYPE_CLASSES = "android-classes";
+    private static final Attribute<Boolean> ATTRIBUTE_TRANSFORMED = Attribute.of(
+            "me.zhanghai.android.bytecoder.transformed", Boolean.class);
+    // The task checking the stubs in all the variants.
+    private static final String CHECK_TASK_NAME = "checkBytecoderStubs";
+
+    @Nonnull
+    private final WorkerExecutor workerExecutor;
+
+    @Inject
+    public BytecoderPlugin(@Nonnull WorkerExecutor workerExecutor) {
+        this.workerExecutor = workerExecutor;
+    }
+
     @Override
     public void apply(@Nonnull Project target) {
+        BytecoderExtension bytecoderExtension = target.getExtensions().create("bytecoder",
+                BytecoderExtension.class, target.container(BytecoderVariantExtension.class));
         BaseExtension extension = getAndroidExtension(target);
+        target.afterEvaluate(project -> {
+            if (bytecoderExtension.getHiddenApiSignatures() != null) {
+                registerHiddenApiTask(project, bytecoderExtension, extension);
+            }
+        });
         if (extension == null) {
+            // The java-library plugin also applies the Java plugin.
+            target.getPlugins().withType(JavaPlugin.class, javaPlugin -> target.getConvention()
+                    .getPlugin(JavaPluginConvention.class).getSourceSets().all(sourceSet ->
+                            registerJavaTask(target, sourceSet, bytecoderExtension)));
+            return;
+        }
+        File sharedDirectory = new File(target.getBuildDir(), "tmp/bytecoder/shared");
+        target.getGradle().buildFinished(result -> {
+            try {
+                BytecoderTransform.deleteRecursivelyIfExists(sharedDirectory.toPath());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        BytecoderTransform transform = new BytecoderTransform(bytecoderExtension, workerExecutor,
+                sharedDirectory);
+        extension.registerTransform(transform);
+        if (extension instanceof AppExtension) {
+            extension.registerTransform(new BytecoderDedupTransform(bytecoderExtension));
+        }
+        target.afterEvaluate(project -> {
+            if (bytecoderExtension.isTransformDependencies()) {
+                registerArtifactTransform(project, bytecoderExtension);
+            }
+        });
+        TaskProvider<Task> checkTaskProvider = target.getTasks().register(CHECK_TASK_NAME);
+        // Variants are created after the project is evaluated, when the extension is configured.
+        getVariants(extension).all(variant -> {
+            transform.addVariant(variant.getName(), variant.getBuildType().getName());
+            if (bytecoderExtension.isTransformDependencies()) {
+                variant.getRuntimeConfiguration().getAttributes().attribute(ATTRIBUTE_TRANSFORMED,
+                        true);
+            }
+            if (bytecoderExtension.isBaselineProfile()) {
+                registerProfileTask(target, variant, bytecoderExtension);
+            }
+            registerCheckTask(target, variant, checkTaskProvider);
+        });
+    }
+
+    private static void registerJavaTask(@Nonnull Project project, @Nonnull SourceSet sourceSet,
+                                         @Nonnull BytecoderExtension extension) {
+        TaskProvider<JavaCompile> compileTaskProvider = project.getTasks().withType(
+                JavaCompile.class).named(sourceSet.getCompileJavaTaskName());
+        File compileDirectory = new File(project.getBuildDir(), "intermediates/bytecoder/javac/"
+                + sourceSet.getName());
+        compileTaskProvider.configure(task -> task.setDestinationDir(compileDirectory));
+        TaskProvider<BytecoderJavaTask> taskProvider = project.getTasks().register(
+                sourceSet.getTaskName("bytecoder", "classes"), BytecoderJavaTask.class, task -> {
+                    task.dependsOn(compileTaskProvider);
+                    task.setClassesDirectory(compileDirectory);
+                    // Source sets are matched by their names.
+                    BytecoderOptions options = extension.getOptions(sourceSet.getName(), null,
+                            null);
+                    task.setTransformEnabled(options.isEnabled());
+                    task.setStubsOnly(options.isStubsOnly());
+                    task.setIsolateStubs(options.isIsolateStubs());
+                    task.setVerify(options.isVerify());
+                    task.setTraceStubs(options.getTracer() != null);
+                    task.setClassVisitorFactoryClassNames(
+                            options.getClassVisitorFactoryClassNames());
+                    task.setClassVisitorFactoryClasspath(project.files(
+                            options.getClassVisitorFactoryClasspath()));
+                    task.setOutputDirectory(sourceSet.getJava().getOutputDir());
+                });
+        sourceSet.compiledBy(taskProvider);
+        project.getTasks().named(sourceSet.getClassesTaskName()).configure(task -> task.dependsOn(
+                taskProvider));
+        // Named checkBytecoderStubs for the main source set, like the task for all the variants.
+        project.getTasks().register(sourceSet.getTaskName("check", "bytecoderStubs"),
+                BytecoderCheckTask.class, task -> {
+                    task.setClasses(project.files(compileDirectory).builtBy(compileTaskProvider));
+                    task.setReportFile(new File(project.getBuildDir(),
+                            "reports/bytecoder/" + sourceSet.getName() + ".txt"));
+                });
+    }
+
+    /**
+     * Register the task generating the jar of accessor classes for hidden API signatures, and add
+     * the jar to the dependencies.
+     *
+     * @param androidExtension the Android extension, or {@code null} for the Java plugin
+     */
+    private static void registerHiddenApiTask(@Nonnull Project project,
+                                              @Nonnull BytecoderExtension extension,
+                                              BaseExtension androidExtension) {
+        if (androidExtension == null && !project.getPlugins().hasPlugin(JavaPlugin.class)) {
             return;
         }
-        extension.registerTransform(new BytecoderTransform());
+        File jarFile = new File(project.getBuildDir(),
+                "intermediates/bytecoder/hiddenapi/accessors.jar");
+        TaskProvider<BytecoderHiddenApiTask> taskProvider = project.getTasks().register(
+                "generateBytecoderHiddenApiAccessors", BytecoderHiddenApiTask.class, task -> {
+                    task.setSignatureFile(project.file(extension.getHiddenApiSignatures()));
+                    task.setAccessorPackage(extension.getHiddenApiAccessorPackage());
+                    if (androidExtension != null) {
+                        task.setSdkVersion(androidExtension.getCompileSdkVersion());
+                        task.setBootClasspath(project.files(androidExtension.getBootClasspath()));
+                    } else {
+                        // Only the classes in java.* are assumed to be available.
+                        task.setSdkVersion("java");
+                        task.setBootClasspath(project.files());
+                    }
+                    task.setCacheDirectory(new File(project.getGradle().getGradleUserHomeDir(),
+                            "caches/bytecoder/hiddenapi"));
+                    task.setJarFile(jarFile);
+                });
+        project.getDependencies().add(JavaPlugin.IMPLEMENTATION_CONFIGURATION_NAME, project.files(
+                jarFile).builtBy(taskProvider));
+    }
+
+    /**
+     * Register the transform for the class jars of dependencies.
+     * <p>
+     * Jars and AARs from repositories are marked as not transformed, which is kept by the
+     * transforms of the Android Gradle plugin extracting the class jars from them, so that
+     * requesting transformed artifacts for a configuration makes Gradle apply this transform to
+     * those class jars. Dependencies on other projects are left alone because they are
+     * transformed in their own projects.
+     */
+    private static void registerArtifactTransform(@Nonnull Project project,
+                                                  @Nonnull BytecoderExtension extension) {
+        DependencyHandler dependencies = project.getDependencies();
+        dependencies.getAttributesSchema().attribute(ATTRIBUTE_TRANSFORMED);
+        for (String artifactType : Arrays.asList("jar", "aar")) {
+            dependencies.getArtifactTypes().maybeCreate(artifactType).getAttributes().attribute(
+                    ATTRIBUTE_TRANSFORMED, false);
+        }
+        dependencies.registerTransform(transform -> {
+            transform.getFrom()
+                    .attribute(ATTRIBUTE_ARTIFACT_TYPE, ARTIFACT_TYPE_CLASSES)
+                    .attribute(ATTRIBUTE_TRANSFORMED, false);
+            transform.getTo()
+                    .attribute(ATTRIBUTE_ARTIFACT_TYPE, ARTIFACT_TYPE_CLASSES)
+                    .attribute(ATTRIBUTE_TRANSFORMED, true);
+            // The parameters and the classpath of the plugin are part of the cache key.
+            transform.artifactTransform(BytecoderArtifactTransform.class, configuration -> {
+                List<Class<? extends BytecoderClassVisitorFactory>> classVisitorFactories =
+                        extension.getAllClassVisitorFactories();
+                configuration.params(extension.isIsolateStubs(), extension.isVerify(),
+                        extension.isTraceStubs(), BytecoderClassVisitorFactories.getClassNames(
+                                classVisitorFactories), BytecoderPluginVersion.hashClasspath(
+                                BytecoderClassVisitorFactories.getClasspath(
+                                        classVisitorFactories)));
+            });
+        });
+    }
+
+    private static void registerProfileTask(@Nonnull Project project, @Nonnull BaseVariant variant,
+                                            @Nonnull BytecoderExtension extension) {
+        String variantName = variant.getName();
+        String taskName = "generate" + Character.toUpperCase(variantName.charAt(0))
+                + variantName.substring(1) + "BytecoderBaselineProfile";
+        TaskProvider<BytecoderProfileTask> taskProvider = project.getTasks().register(taskName,
+                BytecoderProfileTask.class, task -> {
+                    task.setClasses(project.files(variant.getJavaCompile()));
+                    // The rules must match what the transform generates for the variant.
+                    BytecoderOptions options = extension.getOptions(variantName,
+                            variant.getBuildType().getName(), null);
+                    task.setTransformEnabled(options.isEnabled());
+                    task.setIsolateStubs(options.isIsolateStubs());
+                    task.setTraceStubs(options.getTracer() != null);
+                    task.setStartupStubs(extension.getStartupStubs());
+                    List<File> sourceProfileFiles = new ArrayList<>();
+                    for (SourceProvider sourceProvider : variant.getSourceSets()) {
+                        sourceProfileFiles.add(new File(sourceProvider.getManifestFile()
+                                .getParentFile(), "baseline-prof.txt"));
+                    }
+                    task.setSourceProfileFiles(project.files(sourceProfileFiles));
+                    task.setProfileFile(new File(project.getBuildDir(), "intermediates/bytecoder/"
+                            + variant.getDirName() + "/baseline-prof.txt"));
+                });
+        variant.getAssemble().dependsOn(taskProvider);
+    }
+
+    private static void registerCheckTask(@Nonnull Project project, @Nonnull BaseVariant variant,
+                                          @Nonnull TaskProvider<Task> checkTaskProvider) {
+        String variantName = variant.getName();
+        String taskName = "check" + Character.toUpperCase(variantName.charAt(0))
+                + variantName.substring(1) + "BytecoderStubs";
+        TaskProvider<BytecoderCheckTask> taskProvider = project.getTasks().register(taskName,
+                BytecoderCheckTask.class, task -> {
+                    task.setClasses(project.files(variant.getJavaCompile()));
+                    task.setReportFile(new File(project.getBuildDir(), "reports/bytecoder/"
+                            + variant.getDirName() + ".txt"));
+                });
+        checkTaskProvider.configure(task -> task.dependsOn(taskProvider));
+    }
+
+    @Nonnull
+    private static DomainObjectSet<? extends BaseVariant> getVariants(
+            @Nonnull BaseExtension extension) {
+        if (extension instanceof AppExtension) {
+            return ((AppExtension) extension).getApplicationVariants();
+        } else if (extension instanceof FeatureExtension) {
+            return ((FeatureExtension) extension).getFeatureVariants();
+        } else if (extension instanceof LibraryExtension) {
+            return ((LibraryExtension) extension).getLibraryVariants();
+        } else if (extension instanceof TestExtension) {
+            return ((TestExtension) extension).getApplicationVariants();
+        } else {
+            throw new IllegalArgumentException("Unknown extension: " + extension);
+        }
     }
 
     private static BaseExtension getAndroidExtension(@Nonnull Project project) {
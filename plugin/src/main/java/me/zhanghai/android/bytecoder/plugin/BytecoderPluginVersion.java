@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.objectweb.asm.ClassWriter;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The version of the plugin for cache keys, which is the implementation version followed by a hash
+ * of the code of the plugin and ASM, so that it changes whenever the transform may change, even
+ * when the plugin is built without bumping its version or without a jar manifest.
+ */
+class BytecoderPluginVersion {
+
+    private static final String VERSION = computeVersion();
+
+    private BytecoderPluginVersion() {}
+
+    @Nonnull
+    public static String get() {
+        return VERSION;
+    }
+
+    @Nonnull
+    private static String computeVersion() {
+        String implementationVersion = BytecoderPluginVersion.class.getPackage()
+                .getImplementationVersion();
+        return (implementationVersion != null ? implementationVersion : "unspecified") + '-'
+                + hashClasspath(Arrays.asList(
+                BytecoderClassVisitorFactories.getClassSourceFile(BytecoderPluginVersion.class),
+                BytecoderClassVisitorFactories.getClassSourceFile(ClassWriter.class)));
+    }
+
+    /**
+     * Get a hash of the content of the jars and class directories on a classpath.
+     */
+    @Nonnull
+    public static String hashClasspath(@Nonnull List<File> classpath) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            for (File file : classpath) {
+                updateDigest(digest, file.toPath());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return BytecoderSharedOutputs.toHexString(digest.digest());
+    }
+
+    /**
+     * Update a digest with a jar or a class directory.
+     */
+    private static void updateDigest(@Nonnull MessageDigest digest, @Nonnull Path path)
+            throws IOException {
+        if (!Files.isDirectory(path)) {
+            digest.update(Files.readAllBytes(path));
+            return;
+        }
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(path)) {
+            // Files are walked in no particular order.
+            files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            digest.update(path.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(Files.readAllBytes(file));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Generates the baseline profile of a variant, with the rules in the baseline profiles of its
+ * source sets and the rules for the methods used during startup.
+ * <p>
+ * The rules are computed from the classes before they are transformed, so that this task does not
+ * depend on the transform.
+ */
+@CacheableTask
+public class BytecoderProfileTask extends DefaultTask {
+
+    private static final byte[] STARTUP_DESCRIPTOR =
+            "Lme/zhanghai/android/bytecoder/library/Startup;".getBytes(StandardCharsets.UTF_8);
+
+    private static final String CLASS_FILE_EXTENSION = ".class";
+
+    private FileCollection classes;
+    private boolean transformEnabled = true;
+    private boolean isolateStubs;
+    private boolean traceStubs;
+    private List<String> startupStubs = new ArrayList<>();
+    private FileCollection sourceProfileFiles;
+    private File profileFile;
+
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public FileCollection getClasses() {
+        return classes;
+    }
+
+    public void setClasses(FileCollection classes) {
+        this.classes = classes;
+    }
+
+    /**
+     * Whether the classes are transformed, without which there is no rule for the methods used
+     * during startup.
+     *
+     * @see BytecoderVariantExtension#isEnabled()
+     */
+    @Input
+    public boolean isTransformEnabled() {
+        return transformEnabled;
+    }
+
+    public void setTransformEnabled(boolean transformEnabled) {
+        this.transformEnabled = transformEnabled;
+    }
+
+    @Input
+    public boolean isIsolateStubs() {
+        return isolateStubs;
+    }
+
+    public void setIsolateStubs(boolean isolateStubs) {
+        this.isolateStubs = isolateStubs;
+    }
+
+    /**
+     * @see BytecoderExtension#isTraceStubs()
+     */
+    @Input
+    public boolean isTraceStubs() {
+        return traceStubs;
+    }
+
+    public void setTraceStubs(boolean traceStubs) {
+        this.traceStubs = traceStubs;
+    }
+
+    @Input
+    public List<String> getStartupStubs() {
+        return startupStubs;
+    }
+
+    public void setStartupStubs(List<String> startupStubs) {
+        this.startupStubs = startupStubs;
+    }
+
+    @Input
+    public String getPluginVersion() {
+        return BytecoderTransform.getPluginVersion();
+    }
+
+    @InputFiles
+    @PathSensitive(PathSensitivity.NONE)
+    public FileCollection getSourceProfileFiles() {
+        return sourceProfileFiles;
+    }
+
+    public void setSourceProfileFiles(FileCollection sourceProfileFiles) {
+        this.sourceProfileFiles = sourceProfileFiles;
+    }
+
+    @OutputFile
+    public File getProfileFile() {
+        return profileFile;
+    }
+
+    public void setProfileFile(File profileFile) {
+        this.profileFile = profileFile;
+    }
+
+    @TaskAction
+    public void generate() throws IOException {
+
+        Set<String> rules = new LinkedHashSet<>();
+        for (File sourceProfileFile : sourceProfileFiles) {
+            if (!sourceProfileFile.isFile()) {
+                continue;
+            }
+            for (String line : Files.readAllLines(sourceProfileFile.toPath(),
+                    StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    rules.add(line);
+                }
+            }
+        }
+
+        if (transformEnabled) {
+            rules.addAll(getGeneratedRules());
+        }
+
+        Files.createDirectories(profileFile.getParentFile().toPath());
+        Files.write(profileFile.toPath(), rules, StandardCharsets.UTF_8);
+    }
+
+    @Nonnull
+    private List<String> getGeneratedRules() throws IOException {
+        Set<String> startupStubs = new HashSet<>(this.startupStubs);
+        Set<String> startupClassNames = new HashSet<>();
+        for (String startupStub : startupStubs) {
+            int index = startupStub.indexOf('#');
+            startupClassNames.add(index != -1 ? startupStub.substring(0, index) : startupStub);
+        }
+        List<String> generatedRules = new ArrayList<>();
+        for (File directory : classes) {
+            if (!directory.isDirectory()) {
+                continue;
+            }
+            Path directoryPath = directory.toPath();
+            try (Stream<Path> files = Files.walk(directoryPath)) {
+                Iterator<Path> iterator = files.iterator();
+                while (iterator.hasNext()) {
+                    Path file = iterator.next();
+                    String relativeFile = directoryPath.relativize(file).toString();
+                    if (!relativeFile.endsWith(CLASS_FILE_EXTENSION)) {
+                        continue;
+                    }
+                    String className = relativeFile.substring(0, relativeFile.length()
+                            - CLASS_FILE_EXTENSION.length()).replace(File.separatorChar, '.');
+                    byte[] bytes = Files.readAllBytes(file);
+                    // Skip parsing classes that cannot have any method used during startup.
+                    if (!startupClassNames.contains(className)
+                            && !BytecoderClassTranformer.contains(bytes, STARTUP_DESCRIPTOR)) {
+                        continue;
+                    }
+                    generatedRules.addAll(BytecoderClassTranformer.getProfileRules(bytes,
+                            isolateStubs, traceStubs ? BytecoderTracing.TRACER_ANDROID : null,
+                            startupStubs));
+                }
+            }
+        }
+        // Files are walked in no particular order.
+        Collections.sort(generatedRules);
+        return generatedRules;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Outputs shared across the variants of a project during a build, so that a class with the same
+ * content in multiple variants is only transformed once.
+ * <p>
+ * Each entry is a directory named by the hash of the input class, containing the transformed
+ * class and the classes generated for it, which are then hard linked into the output of each
+ * variant. Entries are published atomically because variants may be transformed concurrently.
+ */
+class BytecoderSharedOutputs {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private BytecoderSharedOutputs() {}
+
+    @Nonnull
+    public static Path getEntryDirectory(@Nonnull Path sharedDirectory, @Nonnull String fileName,
+                                         @Nonnull byte[] bytes,
+                                         @Nonnull BytecoderOptions options) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(fileName.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update((byte) (options.isIsolateStubs() ? 1 : 0));
+        // An entry published without verification must not be reused when verifying.
+        digest.update((byte) (options.isVerify() ? 1 : 0));
+        String tracer = options.getTracer();
+        if (tracer != null) {
+            digest.update(tracer.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+        // Entries may outlive a build if the daemon is killed, so they must not be reused after
+        // the class visitor factories change.
+        for (String className : options.getClassVisitorFactoryClassNames()) {
+            digest.update(className.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        digest.update(options.getClassVisitorFactoryClasspathHash().getBytes(
+                StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(bytes);
+        String name = toHexString(digest.digest());
+        // Avoid putting too many entries in a single directory.
+        return sharedDirectory.resolve(name.substring(0, 2)).resolve(name);
+    }
+
+    @Nonnull
+    static String toHexString(@Nonnull byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Publish the outputs for a class unless they have been published concurrently.
+     *
+     * @param generatedClasses the classes generated for the class, by their internal names
+     */
+    public static void publish(@Nonnull Path entryDirectory, @Nonnull String fileName,
+                               @Nonnull byte[] bytes, @Nonnull Map<String, byte[]> generatedClasses)
+            throws IOException {
+        Files.createDirectories(entryDirectory.getParent());
+        Path temporaryDirectory = Files.createTempDirectory(entryDirectory.getParent(),
+                entryDirectory.getFileName().toString());
+        Files.write(temporaryDirectory.resolve(fileName), bytes);
+        for (Map.Entry<String, byte[]> entry : generatedClasses.entrySet()) {
+            Files.write(temporaryDirectory.resolve(BytecoderHolders.getFileName(entry.getKey())),
+                    entry.getValue());
+        }
+        try {
+            Files.move(temporaryDirectory, entryDirectory, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (!Files.isDirectory(entryDirectory)) {
+                throw e;
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(temporaryDirectory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(temporaryDirectory);
+        }
+    }
+
+    /**
+     * Link the published outputs for a class into the output directory, and delete any stale
+     * classes previously generated for it.
+     */
+    public static void materialize(@Nonnull Path entryDirectory, @Nonnull Path outputFile,
+                                   @Nonnull BytecoderWriteStats stats) throws IOException {
+        Set<String> generatedFileNames = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(entryDirectory)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                generatedFileNames.add(fileName);
+                stats.link(outputFile.resolveSibling(fileName), file);
+            }
+        }
+        BytecoderHolders.deleteClassFiles(outputFile, generatedFileNames);
+    }
+}
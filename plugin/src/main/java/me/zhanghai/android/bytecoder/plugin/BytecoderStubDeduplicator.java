@@ -0,0 +1,527 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Deduplicates the stubs with identical code within each package of an application, by keeping one
+ * copy of each and pointing the other stubs to it.
+ * <p>
+ * All the classes are scanned first, and then rewritten. Private stubs are removed and their
+ * callers are rewritten, while the other stubs may have callers outside the application, e.g. in
+ * a test APK, so they are kept and only call the kept copy. The kept copy is a non-private stub in
+ * a class of the package, or a method in a shared class generated for the package if all the
+ * stubs are private.
+ * <p>
+ * The kept copy must still be able to access what the stubs reference, so stubs in a class with a
+ * superclass other than {@code Object} are not deduplicated if they reference members of another
+ * package, which may be protected.
+ */
+class BytecoderStubDeduplicator {
+
+    private static final String SHARED_CLASS_SIMPLE_NAME = "$$BytecoderSharedStubs";
+
+    private final Map<String, List<Stub>> stubsByKey = new HashMap<>();
+
+    private final Map<String, Handle> removedStubTargets = new HashMap<>();
+    private final Map<String, Handle> delegatingStubTargets = new HashMap<>();
+    private final Set<String> stubOwnerNames = new HashSet<>();
+    private final Map<String, byte[]> sharedClasses = new LinkedHashMap<>();
+    private int sharedMethodCount;
+
+    public void scan(@Nonnull byte[] bytes) {
+        ClassReader reader = new ClassReader(bytes);
+        reader.accept(new ScanClassVisitor(), ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    }
+
+    /**
+     * Finish scanning the classes, and generate the shared classes.
+     */
+    public void finishScan() {
+        List<List<Stub>> duplicateStubsList = new ArrayList<>();
+        for (List<Stub> stubs : stubsByKey.values()) {
+            if (stubs.size() > 1) {
+                stubs.sort(Comparator.comparing(stub -> stub.owner + '.' + stub.name));
+                duplicateStubsList.add(stubs);
+            }
+        }
+        // Classes are scanned in no particular order.
+        duplicateStubsList.sort(Comparator.comparing(stubs -> stubs.get(0).owner + '.'
+                + stubs.get(0).name));
+        Map<String, List<List<Stub>>> sharedStubsListByClassName = new LinkedHashMap<>();
+        for (List<Stub> stubs : duplicateStubsList) {
+            Stub keptStub = null;
+            for (Stub stub : stubs) {
+                // An interface method would need to be called with a different instruction.
+                if (!stub.isPrivate && !stub.isOwnerInterface) {
+                    keptStub = stub;
+                    break;
+                }
+            }
+            if (keptStub == null) {
+                sharedStubsListByClassName.computeIfAbsent(getSharedClassName(stubs.get(0).owner),
+                        className -> new ArrayList<>()).add(stubs);
+                continue;
+            }
+            Handle target = new Handle(Opcodes.H_INVOKESTATIC, keptStub.owner, keptStub.name,
+                    keptStub.descriptor, false);
+            for (Stub stub : stubs) {
+                if (stub != keptStub) {
+                    addStubTarget(stub, target);
+                }
+            }
+        }
+        for (Map.Entry<String, List<List<Stub>>> entry : sharedStubsListByClassName.entrySet()) {
+            String sharedClassName = entry.getKey();
+            List<List<Stub>> sharedStubsList = entry.getValue();
+            sharedClasses.put(sharedClassName, newSharedClass(sharedClassName, sharedStubsList));
+        }
+    }
+
+    @Nonnull
+    private byte[] newSharedClass(@Nonnull String className,
+                                  @Nonnull List<List<Stub>> duplicateStubsList) {
+        int version = 0;
+        for (List<Stub> stubs : duplicateStubsList) {
+            for (Stub stub : stubs) {
+                version = Math.max(version, stub.version & 0xFFFF);
+            }
+        }
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(version, Opcodes.ACC_FINAL | Opcodes.ACC_SUPER | Opcodes.ACC_SYNTHETIC,
+                className, null, "java/lang/Object", null);
+        Set<String> usedMethodNames = new HashSet<>();
+        for (List<Stub> stubs : duplicateStubsList) {
+            Stub canonicalStub = stubs.get(0);
+            String sharedMethodName = canonicalStub.name;
+            for (int i = 2; !usedMethodNames.add(sharedMethodName + canonicalStub.descriptor);
+                    ++i) {
+                sharedMethodName = canonicalStub.name + '$' + i;
+            }
+            MethodVisitor mv = writer.visitMethod(Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+                    sharedMethodName, canonicalStub.descriptor, null, canonicalStub.exceptions);
+            mv.visitCode();
+            for (Consumer<MethodVisitor> instruction : canonicalStub.instructions) {
+                instruction.accept(mv);
+            }
+            mv.visitMaxs(canonicalStub.maxStack, canonicalStub.maxLocals);
+            mv.visitEnd();
+            Handle target = new Handle(Opcodes.H_INVOKESTATIC, className, sharedMethodName,
+                    canonicalStub.descriptor, false);
+            for (Stub stub : stubs) {
+                addStubTarget(stub, target);
+            }
+            ++sharedMethodCount;
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private void addStubTarget(@Nonnull Stub stub, @Nonnull Handle target) {
+        String key = getMethodKey(stub.owner, stub.name, stub.descriptor);
+        if (stub.isPrivate) {
+            removedStubTargets.put(key, target);
+        } else {
+            delegatingStubTargets.put(key, target);
+        }
+        stubOwnerNames.add(stub.owner);
+    }
+
+    @Nonnull
+    private static String getSharedClassName(@Nonnull String className) {
+        return getPackageName(className) + SHARED_CLASS_SIMPLE_NAME;
+    }
+
+    /**
+     * Get the package name of a class in its internal form with a trailing slash, or an empty
+     * string for the default package.
+     */
+    @Nonnull
+    private static String getPackageName(@Nonnull String className) {
+        return className.substring(0, className.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Get the shared classes by their names, which are empty if there is no duplicate private
+     * stub.
+     */
+    @Nonnull
+    public Map<String, byte[]> getSharedClasses() {
+        return sharedClasses;
+    }
+
+    /**
+     * Get the number of stubs that were removed or made to call a kept copy.
+     */
+    public int getDeduplicatedCount() {
+        return removedStubTargets.size() + delegatingStubTargets.size();
+    }
+
+    /**
+     * Get the number of method references saved, which is the number of stubs removed minus the
+     * number of shared stubs added.
+     */
+    public int getSavedCount() {
+        return removedStubTargets.size() - sharedMethodCount;
+    }
+
+    /**
+     * Rewrite a class to remove its duplicate stubs and point its calls to them to the shared
+     * stubs.
+     *
+     * @return the rewritten class, or the same bytes if nothing was changed
+     */
+    @Nonnull
+    public byte[] rewrite(@Nonnull byte[] bytes) {
+        if (stubOwnerNames.isEmpty()) {
+            return bytes;
+        }
+        ClassReader reader = new ClassReader(bytes);
+        ClassWriter writer = new ClassWriter(reader, 0);
+        RewriteClassVisitor visitor = new RewriteClassVisitor(writer);
+        reader.accept(visitor, 0);
+        return visitor.changed ? writer.toByteArray() : bytes;
+    }
+
+    @Nonnull
+    private static String getMethodKey(@Nonnull String owner, @Nonnull String name,
+                                       @Nonnull String descriptor) {
+        return owner + '.' + name + descriptor;
+    }
+
+    private static class Stub {
+
+        public String owner;
+        public int version;
+        public boolean isOwnerInterface;
+        public String name;
+        public boolean isPrivate;
+        public String descriptor;
+        public String[] exceptions;
+        public List<Consumer<MethodVisitor>> instructions = new ArrayList<>();
+        public int maxStack;
+        public int maxLocals;
+    }
+
+    private class ScanClassVisitor extends ClassVisitor {
+
+        private String name;
+        private int version;
+        private boolean isInterface;
+        private String superName;
+
+        public ScanClassVisitor() {
+            super(Opcodes.ASM6);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName,
+                          String[] interfaces) {
+            this.name = name;
+            this.version = version;
+            isInterface = (access & Opcodes.ACC_INTERFACE) != 0;
+            this.superName = superName;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor,
+                                         String signature, String[] exceptions) {
+            if ((access & Opcodes.ACC_STATIC) == 0) {
+                return null;
+            }
+            Stub stub = new Stub();
+            stub.owner = this.name;
+            stub.version = version;
+            stub.isOwnerInterface = isInterface;
+            stub.name = name;
+            stub.isPrivate = (access & Opcodes.ACC_PRIVATE) != 0;
+            stub.descriptor = descriptor;
+            stub.exceptions = exceptions;
+            return new ScanMethodVisitor(stub, superName);
+        }
+    }
+
+    /**
+     * Records the instructions of a stub, and computes its key from them. Stubs are generated
+     * without any branch, so any other instruction makes the method not a candidate.
+     */
+    private class ScanMethodVisitor extends MethodVisitor {
+
+        @Nonnull
+        private final Stub stub;
+        private final boolean mayAccessProtectedMembers;
+        private boolean isStub;
+        private boolean isSupported = true;
+        private final StringBuilder keyBuilder = new StringBuilder();
+
+        public ScanMethodVisitor(@Nonnull Stub stub, String ownerSuperName) {
+            super(Opcodes.ASM6);
+
+            this.stub = stub;
+            mayAccessProtectedMembers = ownerSuperName != null && !ownerSuperName.equals(
+                    "java/lang/Object");
+            // Stubs are only deduplicated within their package.
+            keyBuilder.append(getPackageName(stub.owner)).append('\n').append(stub.descriptor);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+            if (descriptor.equals(BytecoderClassTranformer.STUB_DESCRIPTOR)) {
+                isStub = true;
+            }
+            return null;
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            addInstruction(opcode, "", mv -> mv.visitInsn(opcode));
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            addInstruction(opcode, Integer.toString(operand), mv -> mv.visitIntInsn(opcode,
+                    operand));
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            addInstruction(opcode, Integer.toString(var), mv -> mv.visitVarInsn(opcode, var));
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            addInstruction(opcode, type, mv -> mv.visitTypeInsn(opcode, type));
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+            checkMemberOwner(owner);
+            addInstruction(opcode, owner + '.' + name + ':' + descriptor, mv -> mv.visitFieldInsn(
+                    opcode, owner, name, descriptor));
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor,
+                                    boolean isInterface) {
+            checkMemberOwner(owner);
+            addInstruction(opcode, owner + '.' + name + descriptor + ':' + isInterface,
+                    mv -> mv.visitMethodInsn(opcode, owner, name, descriptor, isInterface));
+        }
+
+        @Override
+        public void visitLdcInsn(Object value) {
+            addInstruction(Opcodes.LDC, value.getClass().getName() + ':' + value,
+                    mv -> mv.visitLdcInsn(value));
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethod,
+                                           Object... bootstrapMethodArguments) {
+            isSupported = false;
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            isSupported = false;
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            isSupported = false;
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            isSupported = false;
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            isSupported = false;
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            isSupported = false;
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+            isSupported = false;
+        }
+
+        @Override
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+            isSupported = false;
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            stub.maxStack = maxStack;
+            stub.maxLocals = maxLocals;
+        }
+
+        @Override
+        public void visitEnd() {
+            if (isStub && isSupported) {
+                stubsByKey.computeIfAbsent(keyBuilder.toString(), key -> new ArrayList<>()).add(
+                        stub);
+            }
+        }
+
+        private void checkMemberOwner(@Nonnull String owner) {
+            if (mayAccessProtectedMembers && !getPackageName(owner).equals(getPackageName(
+                    stub.owner))) {
+                isSupported = false;
+            }
+        }
+
+        private void addInstruction(int opcode, @Nonnull String operands,
+                                    @Nonnull Consumer<MethodVisitor> instruction) {
+            // Annotations are visited before the code.
+            if (!isStub) {
+                return;
+            }
+            keyBuilder.append('\n').append(opcode).append(' ').append(operands);
+            stub.instructions.add(instruction);
+        }
+    }
+
+    private class RewriteClassVisitor extends ClassVisitor {
+
+        private String name;
+        public boolean changed;
+
+        public RewriteClassVisitor(@Nonnull ClassVisitor cv) {
+            super(Opcodes.ASM6, cv);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName,
+                          String[] interfaces) {
+            super.visit(version, access, name, signature, superName, interfaces);
+
+            this.name = name;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor,
+                                         String signature, String[] exceptions) {
+            if (stubOwnerNames.contains(this.name)) {
+                String key = getMethodKey(this.name, name, descriptor);
+                if (removedStubTargets.containsKey(key)) {
+                    changed = true;
+                    return null;
+                }
+                Handle target = delegatingStubTargets.get(key);
+                if (target != null) {
+                    changed = true;
+                    MethodVisitor mv = super.visitMethod(access, name, descriptor, signature,
+                            exceptions);
+                    if (mv != null) {
+                        visitDelegatingCode(mv, target);
+                    }
+                    return null;
+                }
+            }
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+            return mv != null ? new RewriteMethodVisitor(mv) : null;
+        }
+
+        private void visitDelegatingCode(@Nonnull MethodVisitor mv, @Nonnull Handle target) {
+            mv.visitCode();
+            int localIndex = 0;
+            for (Type argumentType : Type.getArgumentTypes(target.getDesc())) {
+                mv.visitVarInsn(argumentType.getOpcode(Opcodes.ILOAD), localIndex);
+                localIndex += argumentType.getSize();
+            }
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, target.getOwner(), target.getName(),
+                    target.getDesc(), false);
+            Type returnType = Type.getReturnType(target.getDesc());
+            mv.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+            mv.visitMaxs(Math.max(localIndex, returnType.getSize()), localIndex);
+            mv.visitEnd();
+        }
+
+        private class RewriteMethodVisitor extends MethodVisitor {
+
+            public RewriteMethodVisitor(@Nonnull MethodVisitor mv) {
+                super(Opcodes.ASM6, mv);
+            }
+
+            @Override
+            public void visitMethodInsn(int opcode, String owner, String name, String descriptor,
+                                        boolean isInterface) {
+                if (opcode == Opcodes.INVOKESTATIC && stubOwnerNames.contains(owner)) {
+                    Handle target = removedStubTargets.get(getMethodKey(owner, name,
+                            descriptor));
+                    if (target != null) {
+                        changed = true;
+                        super.visitMethodInsn(opcode, target.getOwner(), target.getName(),
+                                descriptor, false);
+                        return;
+                    }
+                }
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+            }
+
+            @Override
+            public void visitInvokeDynamicInsn(String name, String descriptor,
+                                               Handle bootstrapMethod,
+                                               Object... bootstrapMethodArguments) {
+                Object[] arguments = bootstrapMethodArguments.clone();
+                for (int i = 0; i < arguments.length; ++i) {
+                    arguments[i] = rewriteValue(arguments[i]);
+                }
+                super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethod, arguments);
+            }
+
+            @Override
+            public void visitLdcInsn(Object value) {
+                super.visitLdcInsn(rewriteValue(value));
+            }
+
+            // Method references to a stub, e.g. Foo::bar, are method handles.
+            private Object rewriteValue(Object value) {
+                if (!(value instanceof Handle)) {
+                    return value;
+                }
+                Handle handle = (Handle) value;
+                if (handle.getTag() != Opcodes.H_INVOKESTATIC || !stubOwnerNames.contains(
+                        handle.getOwner())) {
+                    return value;
+                }
+                Handle target = removedStubTargets.get(getMethodKey(handle.getOwner(),
+                        handle.getName(), handle.getDesc()));
+                if (target == null) {
+                    return value;
+                }
+                changed = true;
+                return target;
+            }
+        }
+    }
+}
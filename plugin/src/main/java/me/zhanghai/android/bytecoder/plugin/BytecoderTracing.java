@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Tracers wrap the call to a stub in either an {@code android.os.Trace} section on Android, or a
+ * Java Flight Recorder event on the JVM.
+ * <p>
+ * JFR events are instances of an event class generated for each class, with the name of the stub
+ * in a field, so that they are listed under the same category in JDK Mission Control.
+ */
+class BytecoderTracing {
+
+    public static final String TRACER_ANDROID = "android";
+    public static final String TRACER_JFR = "jfr";
+
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+
+    private static final String TRACE_INTERNAL_NAME = "android/os/Trace";
+    private static final String EVENT_INTERNAL_NAME = "jdk/jfr/Event";
+    private static final String EVENT_FIELD_STUB = "stub";
+    private static final String EVENT_LABEL = "Bytecoder Stub";
+    private static final String EVENT_FIELD_STUB_LABEL = "Stub";
+    private static final String EVENT_CATEGORY = "Bytecoder";
+
+    private BytecoderTracing() {}
+
+    /**
+     * Get the default section name for a method, which is the simple name of its class and its
+     * name.
+     */
+    @Nonnull
+    public static String getSectionName(@Nonnull String className, @Nonnull String methodName) {
+        return className.substring(className.lastIndexOf('.') + 1) + '.' + methodName;
+    }
+
+    /**
+     * Get the size of the local variable used by a tracer, which comes after the parameters.
+     */
+    public static int getLocalSize(@Nonnull String tracer) {
+        return tracer.equals(TRACER_JFR) ? 1 : 0;
+    }
+
+    @Nonnull
+    public static byte[] newEventClass(int version, @Nonnull String name) {
+        ClassWriter writer = BytecoderHolders.newClassWriter(version, name, EVENT_INTERNAL_NAME,
+                null);
+        visitStringAnnotation(writer.visitAnnotation("Ljdk/jfr/Label;", true), EVENT_LABEL);
+        AnnotationVisitor categoryAv = writer.visitAnnotation("Ljdk/jfr/Category;", true);
+        AnnotationVisitor categoryValueAv = categoryAv.visitArray("value");
+        categoryValueAv.visit(null, EVENT_CATEGORY);
+        categoryValueAv.visitEnd();
+        categoryAv.visitEnd();
+        FieldVisitor fv = writer.visitField(0, EVENT_FIELD_STUB, "Ljava/lang/String;", null,
+                null);
+        visitStringAnnotation(fv.visitAnnotation("Ljdk/jfr/Label;", true),
+                EVENT_FIELD_STUB_LABEL);
+        fv.visitEnd();
+        MethodVisitor mv = writer.visitMethod(0, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, EVENT_INTERNAL_NAME, "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static void visitStringAnnotation(@Nonnull AnnotationVisitor av,
+                                              @Nonnull String value) {
+        av.visit("value", value);
+        av.visitEnd();
+    }
+
+    /**
+     * Visit the instructions to begin tracing.
+     *
+     * @param eventClassName the name of the event class for JFR, or {@code null} otherwise
+     * @param localIndex the index of the local variable for the tracer
+     * @return the maximum stack size of the instructions
+     */
+    public static int visitBegin(@Nonnull MethodVisitor mv, @Nonnull String tracer,
+                                 String eventClassName, @Nonnull String sectionName,
+                                 int localIndex) {
+        switch (tracer) {
+            case TRACER_ANDROID:
+                if (sectionName.length() > MAX_SECTION_NAME_LENGTH) {
+                    sectionName = sectionName.substring(0, MAX_SECTION_NAME_LENGTH);
+                }
+                mv.visitLdcInsn(sectionName);
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, TRACE_INTERNAL_NAME, "beginSection",
+                        "(Ljava/lang/String;)V", false);
+                return 1;
+            case TRACER_JFR:
+                mv.visitTypeInsn(Opcodes.NEW, eventClassName);
+                mv.visitInsn(Opcodes.DUP);
+                mv.visitMethodInsn(Opcodes.INVOKESPECIAL, eventClassName, "<init>", "()V", false);
+                mv.visitVarInsn(Opcodes.ASTORE, localIndex);
+                mv.visitVarInsn(Opcodes.ALOAD, localIndex);
+                mv.visitLdcInsn(sectionName);
+                mv.visitFieldInsn(Opcodes.PUTFIELD, eventClassName, EVENT_FIELD_STUB,
+                        "Ljava/lang/String;");
+                mv.visitVarInsn(Opcodes.ALOAD, localIndex);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, eventClassName, "begin", "()V", false);
+                return 2;
+            default:
+                throw new IllegalArgumentException(tracer);
+        }
+    }
+
+    /**
+     * Visit the instructions to end tracing.
+     *
+     * @see #visitBegin(MethodVisitor, String, String, String, int)
+     */
+    public static int visitEnd(@Nonnull MethodVisitor mv, @Nonnull String tracer,
+                               String eventClassName, int localIndex) {
+        switch (tracer) {
+            case TRACER_ANDROID:
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, TRACE_INTERNAL_NAME, "endSection", "()V",
+                        false);
+                return 0;
+            case TRACER_JFR:
+                mv.visitVarInsn(Opcodes.ALOAD, localIndex);
+                // Ends the event if it has not been ended.
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, eventClassName, "commit", "()V",
+                        false);
+                return 1;
+            default:
+                throw new IllegalArgumentException(tracer);
+        }
+    }
+}
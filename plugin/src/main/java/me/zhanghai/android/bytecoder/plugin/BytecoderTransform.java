@@ -8,29 +8,74 @@ package me.zhanghai.android.bytecoder.plugin;
 import com.android.build.api.transform.DirectoryInput;
 import com.android.build.api.transform.Format;
 import com.android.build.api.transform.QualifiedContent;
+import com.android.build.api.transform.SecondaryFile;
 import com.android.build.api.transform.Status;
 import com.android.build.api.transform.Transform;
 import com.android.build.api.transform.TransformInput;
 import com.android.build.api.transform.TransformInvocation;
+import com.android.build.api.transform.TransformOutputProvider;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.workers.WorkerExecutor;
 
+import javax.annotation.Nonnull;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 public class BytecoderTransform extends Transform {
 
+    private static final Logger LOGGER = Logging.getLogger(BytecoderTransform.class);
+
+    @Nonnull
+    private final BytecoderExtension extension;
+    @Nonnull
+    private final WorkerExecutor workerExecutor;
+
+    @Nonnull
+    private final File sharedDirectory;
+
+    @Nonnull
+    private final Map<String, String> variantBuildTypeNames = new HashMap<>();
+
+    /**
+     * @param sharedDirectory the directory for {@link BytecoderSharedOutputs} during a build, which
+     *                        should be deleted after the build
+     */
+    public BytecoderTransform(@Nonnull BytecoderExtension extension,
+                              @Nonnull WorkerExecutor workerExecutor,
+                              @Nonnull File sharedDirectory) {
+        this.extension = extension;
+        this.workerExecutor = workerExecutor;
+        this.sharedDirectory = sharedDirectory;
+    }
+
     @Override
     public String getName() {
         return "Bytecoder";
     }
 
+    /**
+     * Record the build type of a variant, so that the options for it can be found when the
+     * variant is transformed.
+     */
+    public void addVariant(@Nonnull String variantName, @Nonnull String buildTypeName) {
+        variantBuildTypeNames.put(variantName, buildTypeName);
+    }
+
     @Override
     public Set<QualifiedContent.ContentType> getInputTypes() {
         return Collections.singleton(QualifiedContent.DefaultContentType.CLASSES);
@@ -41,24 +86,67 @@ public class BytecoderTransform extends Transform {
         return Collections.singleton(QualifiedContent.Scope.PROJECT);
     }
 
+    @Override
+    public Map<String, Object> getParameterInputs() {
+        Map<String, Object> parameterInputs = new HashMap<>();
+        parameterInputs.put("version", getPluginVersion());
+        parameterInputs.put("jarOutput", extension.isJarOutput());
+        parameterInputs.put("isolateStubs", extension.isIsolateStubs());
+        parameterInputs.put("verify", extension.isVerify());
+        parameterInputs.put("traceStubs", extension.isTraceStubs());
+        parameterInputs.put("variants", extension.getVariantsDescription());
+        parameterInputs.put("classVisitorFactories", BytecoderClassVisitorFactories.getClassNames(
+                extension.getAllClassVisitorFactories()));
+        return parameterInputs;
+    }
+
+    @Override
+    public Collection<SecondaryFile> getSecondaryFiles() {
+        // The classes of the class visitor factories are also inputs.
+        List<SecondaryFile> secondaryFiles = new ArrayList<>();
+        for (File file : BytecoderClassVisitorFactories.getClasspath(
+                extension.getAllClassVisitorFactories())) {
+            secondaryFiles.add(SecondaryFile.nonIncremental(file));
+        }
+        return secondaryFiles;
+    }
+
     @Override
     public boolean isIncremental() {
         return true;
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public void transform(TransformInvocation transformInvocation) throws IOException {
 
-        Path outputDirectory = transformInvocation.getOutputProvider().getContentLocation(getName(),
-                getOutputTypes(), getScopes(), Format.DIRECTORY).toPath();
+        if (extension.isJarOutput()) {
+            transformToJars(transformInvocation);
+            return;
+        }
+
+        TransformOutputProvider outputProvider = transformInvocation.getOutputProvider();
+        Path outputDirectory = getDirectoryLocation(outputProvider);
         if (!transformInvocation.isIncremental()) {
-            deleteRecursivelyIfExists(outputDirectory);
+            Path previousDirectory = getPreviousDirectory(transformInvocation);
+            moveIfExists(outputDirectory, previousDirectory.resolve(outputDirectory.getFileName()));
+            outputProvider.deleteAll();
+            outputDirectory = getDirectoryLocation(outputProvider);
+            moveIfExists(previousDirectory.resolve(outputDirectory.getFileName()),
+                    outputDirectory);
             Files.createDirectories(outputDirectory);
         }
 
+        BytecoderWorkQueue workQueue = newWorkQueue(transformInvocation);
+        List<Path> inputDirectories = new ArrayList<>();
         for (TransformInput input : transformInvocation.getInputs()) {
             for (DirectoryInput directoryInput : input.getDirectoryInputs()) {
                 Path inputDirectory = directoryInput.getFile().toPath();
+                inputDirectories.add(inputDirectory);
                 if (transformInvocation.isIncremental()) {
                     for (Map.Entry<File, Status> fileStatusEntry
                             : directoryInput.getChangedFiles().entrySet()) {
@@ -69,24 +157,215 @@ public class BytecoderTransform extends Transform {
                                 break;
                             case ADDED:
                             case CHANGED:
-                                transformPath(path, inputDirectory, outputDirectory);
+                                transformPath(path, inputDirectory, outputDirectory,
+                                        workQueue);
                                 break;
                             case REMOVED:
-                                deleteRecursivelyIfExists(path);
+                                deletePath(path, inputDirectory, outputDirectory);
                                 break;
                             default:
                                 throw new IllegalArgumentException();
                         }
                     }
                 } else {
-                    transformPath(inputDirectory, inputDirectory, outputDirectory);
+                    transformPath(inputDirectory, inputDirectory, outputDirectory, workQueue);
                 }
             }
         }
+        BytecoderWriteStats stats = workQueue.await();
+        if (!transformInvocation.isIncremental()) {
+            deleteStaleOutputs(outputDirectory, inputDirectories);
+        }
+        logWriteStats(stats);
+    }
+
+    @Nonnull
+    private Path getDirectoryLocation(@Nonnull TransformOutputProvider outputProvider) {
+        return outputProvider.getContentLocation(getName(), getOutputTypes(), getScopes(),
+                Format.DIRECTORY).toPath();
+    }
+
+    @Nonnull
+    private Path getJarLocation(@Nonnull TransformOutputProvider outputProvider,
+                                @Nonnull DirectoryInput directoryInput) {
+        return outputProvider.getContentLocation(directoryInput.getName(), getOutputTypes(),
+                getScopes(), Format.JAR).toPath();
+    }
+
+    /**
+     * Get the directory to keep the previous outputs in during a non-incremental transform, so
+     * that {@link TransformOutputProvider#deleteAll()} can remove any other outputs while the
+     * unchanged files can be left untouched.
+     */
+    @Nonnull
+    private static Path getPreviousDirectory(@Nonnull TransformInvocation transformInvocation)
+            throws IOException {
+        Path previousDirectory = transformInvocation.getContext().getTemporaryDir().toPath()
+                .resolve("previous");
+        deleteRecursivelyIfExists(previousDirectory);
+        Files.createDirectories(previousDirectory);
+        return previousDirectory;
+    }
+
+    private static void moveIfExists(@Nonnull Path source, @Nonnull Path target)
+            throws IOException {
+        if (!Files.exists(source)) {
+            return;
+        }
+        Files.createDirectories(target.getParent());
+        Files.move(source, target);
     }
 
-    private void transformPath(Path path, Path inputDirectory, Path outputDirectory)
+    /**
+     * Delete the previous outputs whose input files no longer exist.
+     */
+    static void deleteStaleOutputs(@Nonnull Path outputDirectory,
+                                   @Nonnull List<Path> inputDirectories)
             throws IOException {
+        Files.walkFileTree(outputDirectory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                    throws IOException {
+                Path relativeFile = outputDirectory.relativize(file);
+                Path relativeHostFile = relativeFile.resolveSibling(
+                        BytecoderHolders.getHostFileName(file.getFileName().toString()));
+                for (Path inputDirectory : inputDirectories) {
+                    if (Files.exists(inputDirectory.resolve(relativeHostFile))) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                }
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException exception)
+                    throws IOException {
+                if (exception != null) {
+                    throw exception;
+                }
+                if (!directory.equals(outputDirectory)) {
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                        if (!files.iterator().hasNext()) {
+                            Files.delete(directory);
+                        }
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Transform each input directory into a jar. Changed classes are transformed into a staging
+     * directory first, and then merged with the unchanged entries of the previous jar.
+     */
+    private void transformToJars(TransformInvocation transformInvocation) throws IOException {
+
+        TransformOutputProvider outputProvider = transformInvocation.getOutputProvider();
+        Path previousDirectory = !transformInvocation.isIncremental() ? getPreviousDirectory(
+                transformInvocation) : null;
+        if (!transformInvocation.isIncremental()) {
+            int index = 0;
+            for (TransformInput input : transformInvocation.getInputs()) {
+                for (DirectoryInput directoryInput : input.getDirectoryInputs()) {
+                    moveIfExists(getJarLocation(outputProvider, directoryInput),
+                            previousDirectory.resolve(index + ".jar"));
+                    ++index;
+                }
+            }
+            outputProvider.deleteAll();
+        }
+        Path stagingRootDirectory = transformInvocation.getContext().getTemporaryDir().toPath()
+                .resolve("staging");
+        deleteRecursivelyIfExists(stagingRootDirectory);
+
+        BytecoderWorkQueue workQueue = newWorkQueue(transformInvocation);
+        List<JarUpdate> jarUpdates = new ArrayList<>();
+        int index = 0;
+        for (TransformInput input : transformInvocation.getInputs()) {
+            for (DirectoryInput directoryInput : input.getDirectoryInputs()) {
+                Path inputDirectory = directoryInput.getFile().toPath();
+                Path jarFile = getJarLocation(outputProvider, directoryInput);
+                if (!transformInvocation.isIncremental()) {
+                    moveIfExists(previousDirectory.resolve(index + ".jar"), jarFile);
+                }
+                ++index;
+                Path stagingDirectory = stagingRootDirectory.resolve(jarFile.getFileName()
+                        .toString());
+                Files.createDirectories(stagingDirectory);
+                Set<String> removedFileNames = new HashSet<>();
+                Set<String> removedDirectoryNames = new HashSet<>();
+                if (transformInvocation.isIncremental() && Files.exists(jarFile)) {
+                    for (Map.Entry<File, Status> fileStatusEntry
+                            : directoryInput.getChangedFiles().entrySet()) {
+                        Path path = fileStatusEntry.getKey().toPath();
+                        Status status = fileStatusEntry.getValue();
+                        Path relativePath = inputDirectory.relativize(path);
+                        String entryName = BytecoderJars.getEntryName(relativePath);
+                        switch (status) {
+                            case NOTCHANGED:
+                                break;
+                            case ADDED:
+                            case CHANGED:
+                                if (Files.isRegularFile(path)) {
+                                    removedFileNames.add(entryName);
+                                    Files.createDirectories(stagingDirectory.resolve(relativePath)
+                                            .getParent());
+                                }
+                                transformPath(path, inputDirectory, stagingDirectory, workQueue);
+                                break;
+                            case REMOVED:
+                                removedFileNames.add(entryName);
+                                removedDirectoryNames.add(entryName + '/');
+                                break;
+                            default:
+                                throw new IllegalArgumentException();
+                        }
+                    }
+                } else {
+                    // Replace all the previous entries, and the jar is left untouched if the
+                    // result is the same.
+                    removedDirectoryNames.add("");
+                    transformPath(inputDirectory, inputDirectory, stagingDirectory, workQueue);
+                }
+                jarUpdates.add(new JarUpdate(jarFile, stagingDirectory, removedFileNames,
+                        removedDirectoryNames));
+            }
+        }
+        workQueue.await();
+        // Only the jars are outputs, so staged files do not count.
+        BytecoderWriteStats stats = new BytecoderWriteStats();
+        for (JarUpdate jarUpdate : jarUpdates) {
+            BytecoderJars.update(jarUpdate.jarFile, jarUpdate.stagingDirectory,
+                    jarUpdate.removedFileNames, jarUpdate.removedDirectoryNames, stats);
+        }
+        deleteRecursivelyIfExists(stagingRootDirectory);
+        logWriteStats(stats);
+    }
+
+    @Nonnull
+    private BytecoderWorkQueue newWorkQueue(@Nonnull TransformInvocation transformInvocation)
+            throws IOException {
+        Path statsDirectory = transformInvocation.getContext().getTemporaryDir().toPath().resolve(
+                "stats");
+        String variantName = transformInvocation.getContext().getVariantName();
+        // Variants with the same classes share the outputs for them, and the plugin version,
+        // which includes a hash of its code, is part of the path in case it changes while the
+        // directory is left over from a build.
+        File sharedDirectory = new File(this.sharedDirectory, getPluginVersion());
+        BytecoderOptions options = extension.getOptions(variantName, variantBuildTypeNames.get(
+                variantName), sharedDirectory);
+        return new BytecoderWorkQueue(workerExecutor, options, statsDirectory);
+    }
+
+    // Unchanged outputs are left untouched, so that the following tasks can stay up-to-date.
+    static void logWriteStats(@Nonnull BytecoderWriteStats stats) {
+        LOGGER.info("Bytecoder wrote {} files and avoided writing {} unchanged files",
+                stats.getWrittenCount(), stats.getUnchangedCount());
+    }
+
+    static void transformPath(Path path, Path inputDirectory, Path outputDirectory,
+                              BytecoderWorkQueue workQueue) throws IOException {
         Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
             @Override
             public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes)
@@ -100,13 +379,31 @@ public class BytecoderTransform extends Transform {
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
                     throws IOException {
                 Path fileInOutput = outputDirectory.resolve(inputDirectory.relativize(file));
-                BytecoderClassTranformer.transform(file, fileInOutput);
+                workQueue.add(file, fileInOutput);
                 return FileVisitResult.CONTINUE;
             }
         });
     }
 
-    private static void deleteRecursivelyIfExists(Path path) throws IOException {
+    static void deletePath(Path path, Path inputDirectory, Path outputDirectory)
+            throws IOException {
+        Path pathInOutput = outputDirectory.resolve(inputDirectory.relativize(path));
+        if (Files.isDirectory(pathInOutput)) {
+            deleteRecursivelyIfExists(pathInOutput);
+        } else {
+            BytecoderClassTranformer.deleteOutput(pathInOutput);
+        }
+    }
+
+    /**
+     * @see BytecoderPluginVersion
+     */
+    @Nonnull
+    static String getPluginVersion() {
+        return BytecoderPluginVersion.get();
+    }
+
+    static void deleteRecursivelyIfExists(Path path) throws IOException {
         if (!Files.exists(path)) {
             return;
         }
@@ -128,4 +425,25 @@ public class BytecoderTransform extends Transform {
             }
         });
     }
+
+    private static class JarUpdate {
+
+        @Nonnull
+        public final Path jarFile;
+        @Nonnull
+        public final Path stagingDirectory;
+        @Nonnull
+        public final Set<String> removedFileNames;
+        @Nonnull
+        public final Set<String> removedDirectoryNames;
+
+        public JarUpdate(@Nonnull Path jarFile, @Nonnull Path stagingDirectory,
+                         @Nonnull Set<String> removedFileNames,
+                         @Nonnull Set<String> removedDirectoryNames) {
+            this.jarFile = jarFile;
+            this.stagingDirectory = stagingDirectory;
+            this.removedFileNames = removedFileNames;
+            this.removedDirectoryNames = removedDirectoryNames;
+        }
+    }
 }
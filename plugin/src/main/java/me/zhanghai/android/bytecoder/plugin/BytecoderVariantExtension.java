@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Options for the variants with a name or a build type, e.g. {@code debug}.
+ */
+public class BytecoderVariantExtension {
+
+    @Nonnull
+    private final String name;
+
+    private boolean enabled = true;
+
+    private boolean stubsOnly;
+
+    public BytecoderVariantExtension(@Nonnull String name) {
+        this.name = name;
+    }
+
+    @Nonnull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Whether to transform the classes. If disabled, the classes are output as is, and stubs are
+     * left unimplemented.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Whether to only transform the classes that may have a stub, and output the other classes by
+     * hard links to them instead of rewriting them, or by copies if hard links are not supported.
+     */
+    public boolean isStubsOnly() {
+        return stubsOnly;
+    }
+
+    public void setStubsOnly(boolean stubsOnly) {
+        this.stubsOnly = stubsOnly;
+    }
+
+    @Override
+    public String toString() {
+        return name + "(enabled=" + enabled + ", stubsOnly=" + stubsOnly + ")";
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.SimpleVerifier;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verifies the code generated for stubs, so that a bad stub fails the build instead of failing
+ * verification on a device.
+ * <p>
+ * The class hierarchy is unknown here, so references are only checked to not be used as a more
+ * specific type than {@link Object} without a cast, e.g. a receiver declared as {@link Object}
+ * with {@code @TypeName}.
+ */
+class BytecoderVerifier {
+
+    private static final Type TYPE_OBJECT = Type.getObjectType("java/lang/Object");
+
+    // The type of null in SimpleVerifier.
+    private static final Type TYPE_NULL = Type.getObjectType("null");
+
+    private BytecoderVerifier() {}
+
+    /**
+     * Verify the stubs in a transformed class and all the methods in the classes generated for
+     * it.
+     *
+     * @param stubLineNumbers the first line numbers of the stubs in the source file by their
+     *                        names and descriptors, or {@code 0} if unknown
+     * @param sourceFile the name of the source file of the class, or {@code null} if unknown
+     */
+    public static void verify(@Nonnull byte[] bytes, @Nonnull Map<String, byte[]> generatedClasses,
+                              @Nonnull Map<String, Integer> stubLineNumbers, String sourceFile) {
+        verifyClass(bytes, stubLineNumbers, true, sourceFile);
+        for (byte[] generatedClass : generatedClasses.values()) {
+            verifyClass(generatedClass, stubLineNumbers, false, sourceFile);
+        }
+    }
+
+    private static void verifyClass(@Nonnull byte[] bytes,
+                                    @Nonnull Map<String, Integer> stubLineNumbers,
+                                    boolean stubsOnly, String sourceFile) {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(bytes).accept(classNode, ClassReader.SKIP_DEBUG);
+        for (MethodNode methodNode : classNode.methods) {
+            String key = methodNode.name + methodNode.desc;
+            if (stubsOnly && !stubLineNumbers.containsKey(key)) {
+                continue;
+            }
+            Analyzer<BasicValue> analyzer = new Analyzer<>(new Verifier(classNode));
+            try {
+                analyzer.analyze(classNode.name, methodNode);
+            } catch (AnalyzerException e) {
+                Integer lineNumber = stubLineNumbers.get(key);
+                String location = (sourceFile != null ? sourceFile : "Unknown Source")
+                        + (lineNumber != null && lineNumber != 0 ? ":" + lineNumber : "");
+                throw new IllegalArgumentException("Method fails verification (" + location
+                        + "): " + classNode.name.replace('/', '.') + '.' + methodNode.name
+                        + methodNode.desc + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static class Verifier extends SimpleVerifier {
+
+        public Verifier(@Nonnull ClassNode classNode) {
+            super(Opcodes.ASM6, Type.getObjectType(classNode.name), classNode.superName != null ?
+                    Type.getObjectType(classNode.superName) : null, getInterfaces(classNode),
+                    (classNode.access & Opcodes.ACC_INTERFACE) != 0);
+        }
+
+        @Nonnull
+        private static List<Type> getInterfaces(@Nonnull ClassNode classNode) {
+            List<Type> interfaces = new ArrayList<>();
+            for (String interfaceName : classNode.interfaces) {
+                interfaces.add(Type.getObjectType(interfaceName));
+            }
+            return interfaces;
+        }
+
+        @Override
+        protected boolean isSubTypeOf(BasicValue value, BasicValue expected) {
+            Type type = value.getType();
+            Type expectedType = expected.getType();
+            if (type != null && expectedType != null && isReference(expectedType)) {
+                return type.equals(TYPE_NULL) || isAssignableFrom(expectedType, type);
+            }
+            return super.isSubTypeOf(value, expected);
+        }
+
+        @Override
+        protected boolean isInterface(Type type) {
+            return false;
+        }
+
+        @Override
+        protected Type getSuperClass(Type type) {
+            return type.equals(TYPE_OBJECT) ? null : TYPE_OBJECT;
+        }
+
+        @Override
+        protected boolean isAssignableFrom(Type type1, Type type2) {
+            if (!isReference(type1) || !isReference(type2)) {
+                return type1.equals(type2);
+            }
+            if (type1.equals(type2) || type1.equals(TYPE_OBJECT)) {
+                return true;
+            }
+            if (type2.equals(TYPE_OBJECT)) {
+                return false;
+            }
+            if (type1.getSort() == Type.ARRAY && type2.getSort() == Type.ARRAY) {
+                Type elementType1 = Type.getType(type1.getDescriptor().substring(1));
+                Type elementType2 = Type.getType(type2.getDescriptor().substring(1));
+                return isAssignableFrom(elementType1, elementType2);
+            }
+            // Any other relation between classes is unknown and assumed to hold.
+            return type1.getSort() != Type.ARRAY || type2.getSort() != Type.OBJECT;
+        }
+
+        private static boolean isReference(@Nonnull Type type) {
+            return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+        }
+
+        @Override
+        protected Class<?> getClass(Type type) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import org.gradle.workers.IsolationMode;
+import org.gradle.workers.WorkerExecutor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class BytecoderWorkQueue {
+
+    static final int FILES_PER_WORK_ITEM = 256;
+
+    // Keep the classpath identical across modules so that Gradle can reuse the isolated class
+    // loader for ASM and the transformer.
+    static final List<File> WORKER_CLASSPATH = Arrays.asList(
+            BytecoderClassVisitorFactories.getClassSourceFile(BytecoderWorker.class),
+            BytecoderClassVisitorFactories.getClassSourceFile(ClassReader.class),
+            BytecoderClassVisitorFactories.getClassSourceFile(ClassNode.class),
+            BytecoderClassVisitorFactories.getClassSourceFile(Analyzer.class));
+
+    @Nonnull
+    private final WorkerExecutor workerExecutor;
+    @Nonnull
+    private final BytecoderOptions options;
+    @Nonnull
+    private final Path statsDirectory;
+
+    @Nonnull
+    private List<File> inputFiles = new ArrayList<>();
+    @Nonnull
+    private List<File> outputFiles = new ArrayList<>();
+    @Nonnull
+    private final List<Path> statsFiles = new ArrayList<>();
+
+    /**
+     * @param statsDirectory the directory for the workers to write their {@link
+     *                       BytecoderWriteStats} to, which will be emptied
+     */
+    public BytecoderWorkQueue(@Nonnull WorkerExecutor workerExecutor,
+                              @Nonnull BytecoderOptions options, @Nonnull Path statsDirectory)
+            throws IOException {
+        this.workerExecutor = workerExecutor;
+        this.options = options;
+        this.statsDirectory = statsDirectory;
+        Files.createDirectories(statsDirectory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(statsDirectory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    public void add(@Nonnull Path inputFile, @Nonnull Path outputFile) {
+        inputFiles.add(inputFile.toFile());
+        outputFiles.add(outputFile.toFile());
+        if (inputFiles.size() >= FILES_PER_WORK_ITEM) {
+            submit();
+        }
+    }
+
+    @Nonnull
+    public BytecoderWriteStats await() throws IOException {
+        submit();
+        workerExecutor.await();
+        BytecoderWriteStats stats = new BytecoderWriteStats();
+        for (Path statsFile : statsFiles) {
+            stats.add(BytecoderWriteStats.readFrom(statsFile));
+        }
+        return stats;
+    }
+
+    private void submit() {
+        if (inputFiles.isEmpty()) {
+            return;
+        }
+        List<File> inputFiles = this.inputFiles;
+        List<File> outputFiles = this.outputFiles;
+        this.inputFiles = new ArrayList<>();
+        this.outputFiles = new ArrayList<>();
+        Path statsFile = statsDirectory.resolve(Integer.toString(statsFiles.size()));
+        statsFiles.add(statsFile);
+        workerExecutor.submit(BytecoderWorker.class, configuration -> {
+            configuration.setDisplayName("Bytecoder " + inputFiles.get(0));
+            configuration.setIsolationMode(IsolationMode.CLASSLOADER);
+            configuration.classpath(WORKER_CLASSPATH);
+            configuration.classpath(options.getClassVisitorFactoryClasspath());
+            configuration.params(inputFiles, outputFiles, options, statsFile.toFile());
+        });
+    }
+}
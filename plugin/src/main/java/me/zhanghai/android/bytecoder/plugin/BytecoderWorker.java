@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+public class BytecoderWorker implements Runnable {
+
+    private final List<File> inputFiles;
+    private final List<File> outputFiles;
+    private final BytecoderOptions options;
+    private final File statsFile;
+
+    @Inject
+    public BytecoderWorker(List<File> inputFiles, List<File> outputFiles,
+                           BytecoderOptions options, File statsFile) {
+        this.inputFiles = inputFiles;
+        this.outputFiles = outputFiles;
+        this.options = options;
+        this.statsFile = statsFile;
+    }
+
+    @Override
+    public void run() {
+        BytecoderWriteStats stats = new BytecoderWriteStats();
+        try {
+            for (int i = 0; i < inputFiles.size(); ++i) {
+                BytecoderClassTranformer.transform(inputFiles.get(i).toPath(),
+                        outputFiles.get(i).toPath(), options, stats);
+            }
+            stats.writeTo(statsFile.toPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018 Zhang Hai <Dreaming.in.Code.ZH@Gmail.com>
+ * All Rights Reserved.
+ */
+
+package me.zhanghai.android.bytecoder.plugin;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Counts of output files that were written, or left untouched because their content did not
+ * change.
+ * <p>
+ * Workers cannot return a result, so they write their counts to a file for the transform to read.
+ */
+class BytecoderWriteStats {
+
+    private int writtenCount;
+    private int unchangedCount;
+
+    public int getWrittenCount() {
+        return writtenCount;
+    }
+
+    public int getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    /**
+     * Write a file unless it already has the same content.
+     *
+     * @return whether the file was written
+     */
+    public boolean write(@Nonnull Path file, @Nonnull byte[] bytes) throws IOException {
+        if (hasContent(file, bytes)) {
+            ++unchangedCount;
+            return false;
+        }
+        // The file may be a hard link to an input, which must not be written through.
+        Files.deleteIfExists(file);
+        Files.write(file, bytes);
+        ++writtenCount;
+        return true;
+    }
+
+    /**
+     * Make a file a hard link to another file unless it already is one or has the same content, or
+     * copy the other file if hard links are not supported.
+     *
+     * @return whether the file was linked or copied
+     */
+    public boolean link(@Nonnull Path file, @Nonnull Path existingFile) throws IOException {
+        if (Files.exists(file) && (Files.isSameFile(file, existingFile) || hasSameContent(file,
+                existingFile))) {
+            ++unchangedCount;
+            return false;
+        }
+        Files.deleteIfExists(file);
+        try {
+            Files.createLink(file, existingFile);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(existingFile, file);
+        }
+        ++writtenCount;
+        return true;
+    }
+
+    /**
+     * Replace a file with a temporary file unless it already has the same content, in which case
+     * the temporary file is deleted.
+     *
+     * @return whether the file was replaced
+     */
+    public boolean replace(@Nonnull Path file, @Nonnull Path temporaryFile) throws IOException {
+        if (hasSameContent(file, temporaryFile)) {
+            Files.delete(temporaryFile);
+            ++unchangedCount;
+            return false;
+        }
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+        ++writtenCount;
+        return true;
+    }
+
+    // The size is compared first so that most changed files are detected without reading them,
+    // and comparing the content is as cheap as hashing it since it has to be read either way.
+    private static boolean hasContent(@Nonnull Path file, @Nonnull byte[] bytes)
+            throws IOException {
+        long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            return false;
+        }
+        return size == bytes.length && Arrays.equals(Files.readAllBytes(file), bytes);
+    }
+
+    private static boolean hasSameContent(@Nonnull Path file1, @Nonnull Path file2)
+            throws IOException {
+        if (!Files.exists(file1) || Files.size(file1) != Files.size(file2)) {
+            return false;
+        }
+        try (InputStream inputStream1 = new BufferedInputStream(Files.newInputStream(file1));
+             InputStream inputStream2 = new BufferedInputStream(Files.newInputStream(file2))) {
+            int b;
+            while ((b = inputStream1.read()) != -1) {
+                if (b != inputStream2.read()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public void add(@Nonnull BytecoderWriteStats stats) {
+        writtenCount += stats.writtenCount;
+        unchangedCount += stats.unchangedCount;
+    }
+
+    public void writeTo(@Nonnull Path file) throws IOException {
+        Files.write(file, (writtenCount + " " + unchangedCount).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Nonnull
+    public static BytecoderWriteStats readFrom(@Nonnull Path file) throws IOException {
+        String[] counts = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).split(" ");
+        BytecoderWriteStats stats = new BytecoderWriteStats();
+        stats.writtenCount = Integer.parseInt(counts[0]);
+        stats.unchangedCount = Integer.parseInt(counts[1]);
+        return stats;
+    }
+}